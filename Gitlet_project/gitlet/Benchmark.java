@@ -0,0 +1,284 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/** Benchmarks for gitlet's storage code, whose main program may be invoked
+ *  as follows:
+ *      java gitlet.Benchmark codecs [FILE...]
+ *  which compresses and decompresses the contents of each FILE (or, with
+ *  no FILEs, a synthetic text and a random binary sample) with every Codec,
+ *  and prints the compression ratio and throughput of each, or
+ *      java gitlet.Benchmark mergebase [N]
+ *  which writes the commit graph of a synthetic history of N commits
+ *  (100000 by default) with branches and merges to a scratch repository,
+ *  and times CommitGraph.mergeBase on pairs of commits against a search
+ *  that collects all the ancestors of one side.
+ */
+public class Benchmark {
+
+    /** Number of timed runs of each measurement; the best is reported. */
+    private static final int RUNS = 5;
+
+    /** Runs the benchmark named by ARGS[0] with the remaining ARGS. */
+    public static void main(String... args) {
+        if (args.length == 0) {
+            System.err.println("Usage: java gitlet.Benchmark codecs [FILE...]");
+            System.err.println("       java gitlet.Benchmark mergebase [N]");
+            System.exit(1);
+        }
+        String[] rest = Arrays.copyOfRange(args, 1, args.length);
+        switch (args[0]) {
+            case "codecs":
+                codecs(rest);
+                break;
+            case "mergebase":
+                mergeBase(rest.length == 0 ? 100000 : Integer.parseInt(rest[0]));
+                break;
+            default:
+                System.err.printf("Unknown benchmark: %s%n", args[0]);
+                System.exit(1);
+        }
+    }
+
+    /** Prints the compression ratio and the compression and decompression
+     *  throughput of every codec on the contents of FILES, or on synthetic
+     *  samples if there are none. */
+    static void codecs(String[] files) {
+        System.out.printf("%-12s %-7s %8s %14s %14s%n",
+                          "sample", "codec", "ratio", "compress MB/s",
+                          "inflate MB/s");
+        if (files.length == 0) {
+            codecs("text", syntheticText(16 << 20));
+            codecs("random", syntheticRandom(8 << 20));
+        }
+        for (String name : files) {
+            codecs(new File(name).getName(), Utils.readContents(new File(name)));
+        }
+    }
+
+    /** Prints the results of every codec on DATA, labelled SAMPLE. */
+    private static void codecs(String sample, byte[] data) {
+        for (Codec codec : Codec.values()) {
+            byte[] compressed = null;
+            long compressTime = Long.MAX_VALUE;
+            long inflateTime = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run += 1) {
+                long start = System.nanoTime();
+                compressed = compress(codec, data);
+                compressTime = Math.min(compressTime, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                byte[] restored = decompress(codec, compressed);
+                inflateTime = Math.min(inflateTime, System.nanoTime() - start);
+                if (restored.length != data.length) {
+                    throw new IllegalStateException(codec + " did not round-trip");
+                }
+            }
+            System.out.printf("%-12s %-7s %8.3f %14.1f %14.1f%n",
+                              sample, codec.name().toLowerCase(),
+                              (double) compressed.length / data.length,
+                              megabytesPerSecond(data.length, compressTime),
+                              megabytesPerSecond(data.length, inflateTime));
+        }
+    }
+
+    /** Number of pairs of commits whose merge base is timed. */
+    private static final int PAIRS = 200;
+
+    /** Times finding the merge bases of PAIRS pairs of commits in a
+     *  synthetic history of N commits. */
+    static void mergeBase(int n) {
+        File dir;
+        try {
+            dir = Files.createTempDirectory("gitlet-bench").toFile();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        // must happen before Repository is loaded, as it fixes GITLET_DIR
+        System.setProperty("user.dir", dir.getPath());
+        Repository.GITLET_DIR.mkdir();
+        try {
+            int[][] parents = syntheticHistory(n);
+            Random random = new Random(61);
+            List<CommitGraph.Node> nodes = new ArrayList<>();
+            String[] ids = new String[n];
+            for (int i = 0; i < n; i += 1) {
+                byte[] sha = new byte[Utils.UID_LENGTH / 2];
+                random.nextBytes(sha);
+                ids[i] = Utils.toHex(sha);
+                String[] parentIds = new String[parents[i].length];
+                for (int k = 0; k < parentIds.length; k += 1) {
+                    parentIds[k] = ids[parents[i][k]];
+                }
+                nodes.add(new CommitGraph.Node(ids[i], parentIds, i * 1000L,
+                                               "commit " + i));
+            }
+            long start = System.nanoTime();
+            CommitGraph.write(nodes);
+            System.out.printf("wrote graph of %d commits in %.1f ms%n",
+                              n, (System.nanoTime() - start) / 1e6);
+
+            // pairs of recent commits, as when merging branch heads
+            int[][] pairs = new int[PAIRS][];
+            for (int i = 0; i < PAIRS; i += 1) {
+                pairs[i] = new int[] {
+                    CommitGraph.find(ids[n - 1 - random.nextInt(Math.min(n, 1000))]),
+                    CommitGraph.find(ids[n - 1 - random.nextInt(Math.min(n, 1000))])
+                };
+            }
+            int[] fast = new int[PAIRS];
+            start = System.nanoTime();
+            for (int i = 0; i < PAIRS; i += 1) {
+                fast[i] = CommitGraph.mergeBase(pairs[i][0], pairs[i][1]);
+            }
+            long fastTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < PAIRS; i += 1) {
+                naiveMergeBase(pairs[i][0], pairs[i][1]);
+            }
+            long naiveTime = System.nanoTime() - start;
+            for (int i = 0; i < PAIRS; i += 1) {
+                if (!ancestors(pairs[i][0]).contains(fast[i])
+                    || !ancestors(pairs[i][1]).contains(fast[i])) {
+                    throw new IllegalStateException("not a common ancestor");
+                }
+            }
+            System.out.printf("%-12s %14s%n", "search", "us per pair");
+            System.out.printf("%-12s %14.1f%n", "generation", fastTime / 1e3 / PAIRS);
+            System.out.printf("%-12s %14.1f%n", "ancestor set", naiveTime / 1e3 / PAIRS);
+        } finally {
+            CommitGraph.FILE.delete();
+            CommitGraph.PENDING.delete();
+            Repository.GITLET_DIR.delete();
+            dir.delete();
+        }
+    }
+
+    /** Returns the parents of each of N commits of a history in which
+     *  commits are made on up to eight branches at once, branches fork from
+     *  one another and are merged back now and then.  Parents precede
+     *  their children. */
+    static int[][] syntheticHistory(int n) {
+        Random random = new Random(61);
+        int[][] parents = new int[n][];
+        parents[0] = new int[0];
+        List<Integer> tips = new ArrayList<>(List.of(0));
+        for (int i = 1; i < n; i += 1) {
+            int choice = random.nextInt(100);
+            int t = random.nextInt(tips.size());
+            if (choice < 3 && tips.size() < 8) {
+                parents[i] = new int[] {tips.get(t)};
+                tips.add(i);
+            } else if (choice < 6 && tips.size() > 1) {
+                int u = (t + 1 + random.nextInt(tips.size() - 1)) % tips.size();
+                parents[i] = new int[] {tips.get(t), tips.get(u)};
+                tips.set(t, i);
+                tips.remove(u);
+            } else {
+                parents[i] = new int[] {tips.get(t)};
+                tips.set(t, i);
+            }
+        }
+        return parents;
+    }
+
+    /** Returns a common ancestor of the commits at positions A and B in
+     *  the commit graph found without generation numbers: the first
+     *  ancestor of A, breadth first, among all the ancestors of B. */
+    private static int naiveMergeBase(int a, int b) {
+        Set<Integer> ofB = ancestors(b);
+        ArrayDeque<Integer> queue = new ArrayDeque<>(List.of(a));
+        Set<Integer> seen = new HashSet<>(List.of(a));
+        while (!queue.isEmpty()) {
+            int pos = queue.poll();
+            if (ofB.contains(pos)) {
+                return pos;
+            }
+            for (int k = 0; k < 2; k += 1) {
+                int parent = CommitGraph.parentAt(pos, k);
+                if (parent != CommitGraph.NONE && seen.add(parent)) {
+                    queue.add(parent);
+                }
+            }
+        }
+        return CommitGraph.NONE;
+    }
+
+    /** Returns the positions of the commit at position POS and all its
+     *  ancestors. */
+    private static Set<Integer> ancestors(int pos) {
+        Set<Integer> result = new HashSet<>(List.of(pos));
+        ArrayDeque<Integer> queue = new ArrayDeque<>(List.of(pos));
+        while (!queue.isEmpty()) {
+            int next = queue.poll();
+            for (int k = 0; k < 2; k += 1) {
+                int parent = CommitGraph.parentAt(next, k);
+                if (parent != CommitGraph.NONE && result.add(parent)) {
+                    queue.add(parent);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns DATA compressed with CODEC. */
+    private static byte[] compress(Codec codec, byte[] data) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length);
+            try (OutputStream out = codec.compress(bytes)) {
+                out.write(data);
+            }
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns DATA decompressed with CODEC. */
+    private static byte[] decompress(Codec codec, byte[] data) {
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the throughput of processing BYTES bytes in NANOS ns. */
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    /** Returns about SIZE bytes of text resembling a configuration file. */
+    static byte[] syntheticText(int size) {
+        Random random = new Random(61);
+        String[] keys = {"host", "port", "timeout", "retries", "path",
+                         "enabled", "threads", "cache.size", "log.level"};
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            text.append(keys[random.nextInt(keys.length)])
+                .append('.').append(random.nextInt(1000))
+                .append(" = ").append(random.nextInt(100000)).append('\n');
+        }
+        return text.toString().getBytes();
+    }
+
+    /** Returns SIZE random bytes, which do not compress. */
+    static byte[] syntheticRandom(int size) {
+        byte[] data = new byte[size];
+        new Random(61).nextBytes(data);
+        return data;
+    }
+}
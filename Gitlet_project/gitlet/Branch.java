@@ -1,7 +1,193 @@
 package gitlet;
 
-import java.io.Serializable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
-public class Branch implements Serializable{
+import static gitlet.Utils.*;
 
+/** The branches of a repository as stored on disk, each mapping a name to
+ *  the id of its head commit.  State holds the ones a command uses in
+ *  memory and writes back the ones it changes.
+ *
+ *  A branch is normally a loose ref: a file in .gitlet/refs holding the id
+ *  of its head and a newline, so that reading or moving one branch reads
+ *  or writes 41 bytes however many branches there are.  The file is named
+ *  by the branch name, with every byte of its UTF-8 form other than an
+ *  ASCII letter, digit, '-', '_' or non-leading '.' written as %XX.
+ *
+ *  gc packs the loose refs into .gitlet/packed-refs, which holds a line
+ *  "ID NAME" for each branch, sorted by name, so that a repository with
+ *  many branches lists them from one file.  A loose ref overrides a packed
+ *  ref of the same name, and deleting a packed branch rewrites the file.
+ *
+ *  Repositories made before refs keep their branches in the serialized
+ *  map .gitlet/branches.  It is read beneath the packed refs until the
+ *  first command that changes a branch folds it into packed-refs (see
+ *  migrate).
+ */
+class Branch {
+
+    /** The directory of loose refs, and the file of packed refs. */
+    static final File REFS_DIR = join(Repository.GITLET_DIR, "refs");
+    static final File PACKED = join(Repository.GITLET_DIR, "packed-refs");
+
+    /** The packed refs, or null if not yet read, and the stamp (see
+     *  Utils.stamp) of PACKED when they were read. */
+    private static TreeMap<String, String> packed;
+    private static long packedStamp;
+
+    /** The branches of the old serialized map, or null if not yet read,
+     *  and the stamp of the map's file when they were read. */
+    private static HashMap<String, String> legacy;
+    private static long legacyStamp;
+
+    /** Returns the head commit id of the branch NAME, or null if there is
+     *  no such branch. */
+    static String read(String name) {
+        File ref = join(REFS_DIR, fileName(name));
+        if (ref.isFile()) {
+            return readContentsAsString(ref).trim();
+        }
+        String id = packed().get(name);
+        return id != null ? id : legacy().get(name);
+    }
+
+    /** Returns every branch, mapping its name to its head commit id. */
+    static TreeMap<String, String> all() {
+        TreeMap<String, String> result = new TreeMap<>(legacy());
+        result.putAll(packed());
+        String[] names = REFS_DIR.list();
+        if (names != null) {
+            for (String name : names) {
+                result.put(branchName(name),
+                           readContentsAsString(join(REFS_DIR, name)).trim());
+            }
+        }
+        return result;
+    }
+
+    /** Makes ID the head commit of the branch NAME, or deletes the branch
+     *  if ID is null, as part of the change the Journal commits. */
+    static void write(String name, String id) {
+        if (id != null) {
+            REFS_DIR.mkdirs();
+            Journal.write(join(REFS_DIR, fileName(name)),
+                          (id + "\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        Journal.delete(REFS_DIR, fileName(name));
+        if (packed().containsKey(name)) {
+            TreeMap<String, String> refs = new TreeMap<>(packed());
+            refs.remove(name);
+            writePacked(refs);
+        }
+    }
+
+    /** Moves the loose refs into the packed refs. */
+    static void pack() {
+        String[] names = REFS_DIR.list();
+        if (names == null || names.length == 0) {
+            return;
+        }
+        TreeMap<String, String> refs = new TreeMap<>(packed());
+        for (String name : names) {
+            refs.put(branchName(name),
+                     readContentsAsString(join(REFS_DIR, name)).trim());
+        }
+        writePacked(refs);
+        for (String name : names) {
+            Journal.delete(REFS_DIR, name);
+        }
+    }
+
+    /** Folds the branches of the old serialized map, if there is one, into
+     *  the packed refs and deletes the map. */
+    static void migrate() {
+        if (!Repository.BRANCHES.exists()) {
+            return;
+        }
+        TreeMap<String, String> refs = new TreeMap<>(legacy());
+        refs.putAll(packed());
+        writePacked(refs);
+        Journal.delete(Repository.GITLET_DIR, Repository.BRANCHES.getName());
+        legacy = null;
+    }
+
+    /** Returns the stamp of the files holding the branches. */
+    static long stamp() {
+        return Utils.stamp(REFS_DIR, PACKED, Repository.BRANCHES);
+    }
+
+    /** Returns the packed refs, reading them if they have changed. */
+    private static TreeMap<String, String> packed() {
+        if (packed == null || Utils.stamp(PACKED) != packedStamp) {
+            packedStamp = Utils.stamp(PACKED);
+            packed = new TreeMap<>();
+            if (PACKED.isFile()) {
+                for (String line : readContentsAsString(PACKED).split("\n")) {
+                    int space = line.indexOf(' ');
+                    if (space > 0) {
+                        packed.put(line.substring(space + 1), line.substring(0, space));
+                    }
+                }
+            }
+        }
+        return packed;
+    }
+
+    /** Replaces the packed refs by REFS. */
+    private static void writePacked(TreeMap<String, String> refs) {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            out.append(ref.getValue()).append(' ').append(ref.getKey()).append('\n');
+        }
+        Journal.write(PACKED, out.toString().getBytes(StandardCharsets.UTF_8));
+        packed = null;
+    }
+
+    /** Returns the branches of the old serialized map, or an empty map if
+     *  there is none. */
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, String> legacy() {
+        if (legacy == null || Utils.stamp(Repository.BRANCHES) != legacyStamp) {
+            legacyStamp = Utils.stamp(Repository.BRANCHES);
+            legacy = Repository.BRANCHES.isFile()
+                ? readObject(Repository.BRANCHES, HashMap.class) : new HashMap<>();
+        }
+        return legacy;
+    }
+
+    /** Returns the name of the loose ref of the branch NAME. */
+    private static String fileName(String name) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if (c < 0x80 && (Character.isLetterOrDigit(c) || c == '-' || c == '_'
+                             || (c == '.' && result.length() > 0))) {
+                result.append(c);
+            } else {
+                result.append(String.format("%%%02X", b & 0xff));
+            }
+        }
+        return result.toString();
+    }
+
+    /** Returns the name of the branch whose loose ref is named FILENAME. */
+    private static String branchName(String fileName) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (int i = 0; i < fileName.length(); i += 1) {
+            char c = fileName.charAt(i);
+            if (c == '%') {
+                result.write(Integer.parseInt(fileName.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                result.write(c);
+            }
+        }
+        return new String(result.toByteArray(), StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,124 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+import static gitlet.Utils.*;
+
+/** A thin client for Daemon, whose main program may be invoked as
+ *      java gitlet.Client ARGS
+ *  in place of java gitlet.Main ARGS, with the same output and exit
+ *  status.  The command is sent to the daemon serving the repository in
+ *  the working directory if there is one, and otherwise run in this JVM.
+ *  A batch (see Main.batch), which already runs in one JVM and may read
+ *  the client's standard input, is always run here.
+ */
+public class Client {
+
+    /** Runs the gitlet command ARGS, through the daemon if possible. */
+    public static void main(String... args) {
+        if (args.length > 0 && args[0].equals("batch")) {
+            Main.main(args);
+            return;
+        }
+        Integer status;
+        try (SocketChannel channel = connect()) {
+            status = channel == null ? null : run(channel, args);
+        } catch (IOException excp) {
+            System.out.flush();
+            System.err.println("gitlet daemon: " + excp.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (status == null) {
+            Main.main(args);
+            return;
+        }
+        System.out.flush();
+        System.exit(status);
+    }
+
+    /** Returns a channel connected to the daemon serving the repository in
+     *  the working directory, or null if there is none. */
+    static SocketChannel connect() {
+        if (!Daemon.SOCKET.exists()) {
+            return null;
+        }
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(Daemon.SOCKET.toPath()));
+            return channel;
+        } catch (IOException excp) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException ignored) {
+                // nothing useful to do
+            }
+            return null;
+        }
+    }
+
+    /** Asks the daemon serving the repository in the working directory, if
+     *  any, to stop, and waits for it to do so. */
+    static void stop() {
+        try (SocketChannel channel = connect()) {
+            if (channel == null) {
+                return;
+            }
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.writeByte(Daemon.STOP);
+            out.flush();
+            new DataInputStream(Channels.newInputStream(channel)).readUnsignedByte();
+        } catch (IOException excp) {
+            // it has gone already
+        }
+    }
+
+    /** Has the daemon on CHANNEL run the command ARGS, copying its output
+     *  to System.out and System.err.  Returns its exit status, or null if
+     *  the daemon refused to run it. */
+    private static Integer run(SocketChannel channel, String[] args)
+        throws IOException {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel)));
+        out.writeByte(Daemon.RUN);
+        writeString(out, Repository.CWD.getPath());
+        writeVarint(out, args.length);
+        for (String arg : args) {
+            writeString(out, arg);
+        }
+        out.flush();
+
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+        byte[] buf = new byte[BUFFER_SIZE];
+        while (true) {
+            int tag = in.readUnsignedByte();
+            if (tag == Daemon.EXIT) {
+                return (int) readVarint(in);
+            } else if (tag == Daemon.REFUSED) {
+                return null;
+            } else if (tag == Daemon.OUT || tag == Daemon.ERR) {
+                long length = readVarint(in);
+                while (length > 0) {
+                    int n = (int) Math.min(length, buf.length);
+                    in.readFully(buf, 0, n);
+                    (tag == Daemon.OUT ? System.out : System.err).write(buf, 0, n);
+                    length -= n;
+                }
+            } else {
+                throw new IOException("bad reply");
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** The compression codecs loose objects may be stored with.  Every loose
+ *  object starts with a header recording its codec (see ObjectStore), RAW
+ *  ones included, so objects written with different codecs can live side
+ *  by side in one repository.  The contents of a RAW object follow its
+ *  header unchanged, which lets them be copied out without being read
+ *  through the heap.
+ *
+ *  The codec used for new objects is taken from the gitlet.codec system
+ *  property (raw, deflate or fast).  The default is fast, which on text
+ *  gives most of deflate's savings at several times its speed (see
+ *  "java gitlet.Benchmark codecs").
+ */
+enum Codec {
+    /** No compression. */
+    RAW(0, 0),
+    /** zlib deflate at its default level. */
+    DEFLATE(1, Deflater.DEFAULT_COMPRESSION),
+    /** zlib deflate at its fastest level, trading size for throughput. */
+    FAST(2, Deflater.BEST_SPEED);
+
+    /** The byte recording this codec in an object header. */
+    private final int id;
+    /** The deflate level used by this codec. */
+    private final int level;
+
+    Codec(int id, int level) {
+        this.id = id;
+        this.level = level;
+    }
+
+    /** Returns the byte recording this codec in an object header. */
+    int id() {
+        return id;
+    }
+
+    /** Returns the codec recorded as ID in an object header. */
+    static Codec forId(int id) {
+        for (Codec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("unknown codec " + id);
+    }
+
+    /** Returns the codec that new objects are written with. */
+    static Codec configured() {
+        String name = System.getProperty("gitlet.codec", "fast");
+        return valueOf(name.toUpperCase());
+    }
+
+    /** Returns a stream that compresses what is written to it onto OUT. */
+    OutputStream compress(OutputStream out) {
+        if (this == RAW) {
+            return out;
+        }
+        Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, Utils.BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                deflater.end();
+            }
+        };
+    }
+
+    /** Returns a stream that decompresses what is read from IN. */
+    InputStream decompress(InputStream in) {
+        if (this == RAW) {
+            return in;
+        }
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, Utils.BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+}
@@ -2,13 +2,24 @@ package gitlet;
 
 // TODO: any imports you need here
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.security.PrivateKey;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date; // TODO: You'll likely use this in this class
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.TreeMap;
 
 import static gitlet.Utils.*;
 
@@ -26,7 +37,32 @@ public class Commit implements Serializable {
      * variable is used. We've provided one example for `message`.
      */
 
+    /** Pinned to the version of the original, Java-serialized commit
+     *  format, so that commits written in that format remain readable. */
+    private static final long serialVersionUID = -4173603317772727953L;
+
+    /** The bytes that start a commit in the binary format.  A Java
+     *  serialization stream starts with 0xACED instead. */
+    private static final byte[] MAGIC = {'g', 'c'};
+
+    /** The version of the binary format written by encode.  Version 1
+     *  commits, which list their files inline, are still read. */
+    private static final int FORMAT_VERSION = 2;
+
+    /** Length of a SHA-1 in bytes. */
+    private static final int SHA_BYTES = UID_LENGTH / 2;
+
+    /** The format of commit dates in logs, which is that of the format
+     *  "%tb %ta %te %tH:%tM:%tS %tY %tz", built once rather than parsed for
+     *  every commit printed. */
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("MMM EEE d HH:mm:ss yyyy Z",
+                                    Locale.getDefault(Locale.Category.FORMAT))
+                         .withZone(ZoneId.systemDefault());
+
     private String parentSHA;
+    /** The SHA-1 of the merged-in commit, if this Commit is a merge. */
+    private String secondParentSHA;
     private Date commitTime;
     // key is name of file (String), corresponding value is SHA-1 (String)
     private HashMap<String, String> blobs;
@@ -34,6 +70,38 @@ public class Commit implements Serializable {
     /** The message of this Commit. */
     private String message;
 
+    /** The id of the tree holding this Commit's files (see Tree), or null
+     *  if it has not been needed yet for a commit read from one of the
+     *  older formats, which list their files inline. */
+    private transient String tree;
+
+    /** The SHA-1 of this Commit, which is also its file name, or null if it
+     *  has not been saved yet. */
+    private transient String id;
+
+    /** True if only this Commit's header was read and its blobs have not
+     *  been needed yet. */
+    private transient boolean headerOnly;
+
+    /** The weight this Commit was entered into CACHE with. */
+    private transient int weight;
+
+    /** Total weight of the commits kept in CACHE.  A commit weighs one
+     *  plus the number of its files, roughly in proportion to its size. */
+    private static final long CACHE_LIMIT = 1 << 20;
+
+    /** Recently read or written commits by id, least recently used first,
+     *  so that a commit is decoded once however many times a command (or a
+     *  batch of commands, or a daemon) asks for it.  Commits are never
+     *  changed once stored, so the cached objects are shared: callers must
+     *  not modify them or their blobs. */
+    private static final LinkedHashMap<String, Commit> CACHE =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Total weight of the commits in CACHE.  Both are guarded by CACHE's
+     *  lock, as commits may be read from several threads. */
+    private static long cachedWeight;
+
     public Commit() {
         this.parentSHA = null;
         this.blobs = new HashMap<String, String>();
@@ -41,21 +109,63 @@ public class Commit implements Serializable {
         this.commitTime = new Date(0);
     }
 
+    /** A commit with message M of the changes staged on the current
+     *  branch.  Its tree is its parent's with only the trees on the changed
+     *  paths rewritten, and its files are not listed until needed. */
     public Commit(String m) {
         this.parentSHA = findParentSHA1();
-        this.blobs = commitBlobs();
+        this.tree = Tree.update(read(parentSHA).getTree(), stagedChanges());
         this.message = m;
         this.commitTime = new Date();
     }
 
+    /** A merge commit with message M of the current branch and the commit
+     *  SECONDPARENT. */
+    public Commit(String m, String secondParent) {
+        this(m);
+        this.secondParentSHA = secondParent;
+    }
+
+    /** Returns the map from paths to blob ids of this Commit's files,
+     *  reading them the first time they are needed. */
     public HashMap<String, String> getBlobs(){
+        if (blobs == null) {
+            blobs = tree != null ? Tree.flatten(tree) : read(id).getBlobs();
+            headerOnly = false;
+            if (id != null) {
+                cache(this);
+            }
+        }
         return blobs;
     }
 
+    /** Returns the id of the tree holding this Commit's files, storing the
+     *  tree first if this Commit is new or was read from an older format. */
+    public String getTree() {
+        if (tree == null) {
+            tree = Tree.write(getBlobs());
+        }
+        return tree;
+    }
+
+    /** Returns the id of the tree holding this Commit's files, or null if
+     *  it has none stored, being new or read from an older format. */
+    String storedTree() {
+        return tree;
+    }
+
+    public String getId() {
+        return id;
+    }
+
     public String getParentSHA(){
         return parentSHA;
     }
 
+    public String getSecondParentSHA() {
+        return secondParentSHA;
+    }
+
     public Date getCommitTime(){
         return commitTime;
     }
@@ -64,62 +174,223 @@ public class Commit implements Serializable {
         return message;
     }
 
-    public void printCommit(){
-        System.out.println("===");
-        System.out.println("commit " + sha1(serialize(this)));
-        System.out.println(String.format("Date: %1$tb %1$ta %1$te %1$tH:%1$tM:%1$tS %1$tY %1$tz", commitTime));
-        System.out.println(message);
-        System.out.println();
+    /** Appends the log entry of the commit named ID, made at TIME with
+     *  MESSAGE, to OUT.  For a merge, PARENT and SECONDPARENT are the ids of
+     *  its parents; SECONDPARENT is null otherwise. */
+    static void printCommit(StringBuilder out, String id, String parent,
+                            String secondParent, Date time, String message) {
+        out.append("===\n");
+        out.append("commit ").append(id).append("\n");
+        if (secondParent != null) {
+            out.append("Merge: ").append(parent, 0, 7).append(" ")
+               .append(secondParent, 0, 7).append("\n");
+        }
+        out.append("Date: ");
+        DATE_FORMAT.formatTo(time.toInstant(), out);
+        out.append("\n").append(message).append("\n\n");
     }
 
     public void saveCommit() {
-        String sha = sha1(serialize(this));
-        File thisCommit = join(Repository.COMMIT_DIR, sha);
-        writeObject(thisCommit, this);
+        String sha = ObjectStore.write(ObjectStore.Kind.COMMIT, encode());
+        id = sha;
+        cache(this);
+        CommitIndex.add(sha);
+        CommitGraph.add(this);
+        MessageIndex.add(sha, message);
 
         // Changes current branch to point at this commit's
         // SHA-1 hash ID.
-        String branch = readContentsAsString(Repository.CURR_BRANCH);
-        HashMap<String, String> branches = readObject(Repository.BRANCHES, HashMap.class);
-        branches.put(branch, sha);
-        writeObject(Repository.BRANCHES, branches);
+        State.setBranch(State.currentBranch(), sha);
     }
 
     public String findParentSHA1() {
-        String branch = readContentsAsString(Repository.CURR_BRANCH);
-        HashMap<String, String> branches = readObject(Repository.BRANCHES, HashMap.class);
-        return branches.get(branch);
+        return State.head();
     }
 
-    public HashMap<String, String> commitBlobs() {
-        Commit commit = readObject(join(Repository.COMMIT_DIR, this.parentSHA), Commit.class);
-        HashMap<String, String> oldBlobs = commit.getBlobs();
-        HashMap<String, String> blobs = new HashMap<String, String>();
+    /** Returns the changes staged for this Commit, mapping each path
+     *  staged for addition to its blob, which is moved into the object
+     *  store, and each path staged for removal to null.  The staging area
+     *  is left empty. */
+    private static TreeMap<String, String> stagedChanges() {
+        TreeMap<String, String> changes = new TreeMap<>();
+        for (String path : plainFilePathsIn(Repository.ADD_DIR)) {
+            File staged = join(Repository.ADD_DIR, path);
+            Journal.keep(staged);
+            changes.put(path, Repository.storeBlob(staged));
+            // drops the staging directories the file leaves empty
+            deletePath(Repository.ADD_DIR, path);
+        }
 
-        if (oldBlobs != null) {
-            writeObject(Repository.TEMP, oldBlobs);
-            blobs = readObject(Repository.TEMP, HashMap.class);
+        HashSet<String> stagedForRemoval = State.removals();
+        for (String filename : stagedForRemoval) {
+            changes.put(filename, null);
         }
+        stagedForRemoval.clear();
+        State.setRemovals(stagedForRemoval);
 
-        File[] toBeCommitted = Repository.ADD_DIR.listFiles();
+        return changes;
+    }
 
-        if (toBeCommitted == null) {
-            return blobs;
+    /** Returns the binary encoding of this Commit:
+     *
+     *      MAGIC, version byte
+     *      varint number of parents, then each parent as 20 raw bytes
+     *      varint commit time in milliseconds
+     *      message, as a varint length and UTF-8 bytes
+     *      the 20-byte SHA-1 of the tree holding its files
+     *
+     *  Version 1 commits instead end with a varint number of blobs, then
+     *  for each blob in file name order, its file name (as for the message)
+     *  and its 20-byte SHA-1.  Everything before the tree or blob count is
+     *  the header, which read decodes alone when asked for only the
+     *  header. */
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            writeVarint(out, parentSHA == null ? 0 : secondParentSHA == null ? 1 : 2);
+            if (parentSHA != null) {
+                out.write(fromHex(parentSHA));
+            }
+            if (secondParentSHA != null) {
+                out.write(fromHex(secondParentSHA));
+            }
+            writeVarint(out, commitTime.getTime());
+            writeString(out, message);
+            out.write(fromHex(getTree()));
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error serializing commit.");
         }
+    }
+
+    /** Returns the commit named ID, which may be stored in either the
+     *  binary or the original serialized format. */
+    public static Commit read(String id) {
+        return read(id, false);
+    }
 
-        for (File f : toBeCommitted) {
-            String filename = f.getName();
-            byte[] fContents = readContents(f);
-            String sha = sha1(fContents);
-            blobs.put(filename, sha);
-            Repository.copyContents(f, join(Repository.BLOB_DIR, sha));
-            f.delete();
+    /** Returns the commit named ID, from CACHE if possible.  If
+     *  HEADERONLY, only its header (parents, time and message) need be
+     *  decoded, and its blobs are read the first time getBlobs is called. */
+    static Commit read(String id, boolean headerOnly) {
+        synchronized (CACHE) {
+            Commit cached = CACHE.get(id);
+            if (cached != null && (headerOnly || !cached.headerOnly)) {
+                return cached;
+            }
         }
+        Commit result = decode(id, headerOnly);
+        cache(result);
+        return result;
+    }
 
-        HashSet<String> stagedForRemoval = readObject(Repository.REMOVED, HashSet.class);
-        stagedForRemoval.clear();
-        writeObject(Repository.REMOVED, stagedForRemoval);
+    /** Enters COMMIT into CACHE, evicting the least recently used commits
+     *  while the cache is over CACHE_LIMIT. */
+    private static void cache(Commit commit) {
+        synchronized (CACHE) {
+            commit.weight = 1 + (commit.blobs == null ? 0 : commit.blobs.size());
+            Commit old = CACHE.put(commit.id, commit);
+            if (old != null) {
+                cachedWeight -= old.weight;
+            }
+            cachedWeight += commit.weight;
+            Iterator<Commit> eldest = CACHE.values().iterator();
+            while (cachedWeight > CACHE_LIMIT && eldest.hasNext()) {
+                cachedWeight -= eldest.next().weight;
+                eldest.remove();
+            }
+        }
+    }
 
-        return blobs;
+    /** Returns the commit named ID as stored, decoding only its header if
+     *  HEADERONLY. */
+    private static Commit decode(String id, boolean headerOnly) {
+        try (DataInputStream in = new DataInputStream(
+                 ObjectStore.open(ObjectStore.Kind.COMMIT, id))) {
+            in.mark(MAGIC.length);
+            if (in.readUnsignedByte() != MAGIC[0]
+                || in.readUnsignedByte() != MAGIC[1]) {
+                in.reset();
+                Commit result = (Commit) new ObjectInputStream(in).readObject();
+                result.id = id;
+                return result;
+            }
+            int version = in.readUnsignedByte();
+            if (version != 1 && version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("unknown commit format " + version);
+            }
+            Commit result = new Commit();
+            result.id = id;
+            result.blobs = null;
+            long numParents = readVarint(in);
+            for (long i = 0; i < numParents; i += 1) {
+                byte[] parent = new byte[SHA_BYTES];
+                in.readFully(parent);
+                if (i == 0) {
+                    result.parentSHA = toHex(parent);
+                } else if (i == 1) {
+                    result.secondParentSHA = toHex(parent);
+                }
+            }
+            result.commitTime = new Date(readVarint(in));
+            result.message = readString(in);
+            if (version == FORMAT_VERSION) {
+                byte[] tree = new byte[SHA_BYTES];
+                in.readFully(tree);
+                result.tree = toHex(tree);
+                return result;
+            }
+            if (headerOnly) {
+                result.headerOnly = true;
+                return result;
+            }
+            long numBlobs = readVarint(in);
+            result.blobs = new HashMap<>();
+            for (long i = 0; i < numBlobs; i += 1) {
+                String name = readString(in);
+                byte[] sha = new byte[SHA_BYTES];
+                in.readFully(sha);
+                result.blobs.put(name, toHex(sha));
+            }
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Rewrites this Commit, read from the original serialized format or
+     *  with parents that were themselves rewritten, in the current binary
+     *  format with NEWPARENTSHA and NEWSECONDPARENTSHA as its parents.
+     *  Returns its new id; the old loose object is deleted. */
+    String migrate(String newParentSHA, String newSecondParentSHA) {
+        File old = ObjectStore.loose(ObjectStore.Kind.COMMIT, id);
+        synchronized (CACHE) {
+            Commit cached = CACHE.remove(id);
+            if (cached != null) {
+                cachedWeight -= cached.weight;
+            }
+        }
+        parentSHA = newParentSHA;
+        secondParentSHA = newSecondParentSHA;
+        id = ObjectStore.write(ObjectStore.Kind.COMMIT, encode());
+        if (!old.getName().equals(id)) {
+            old.delete();
+        }
+        return id;
+    }
+
+    /** Returns true if the commit named ID is stored in the original
+     *  serialized format. */
+    static boolean isLegacy(String id) {
+        try (InputStream in = ObjectStore.open(ObjectStore.Kind.COMMIT, id)) {
+            return in.read() != MAGIC[0] || in.read() != MAGIC[1];
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 }
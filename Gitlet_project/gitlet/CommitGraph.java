@@ -0,0 +1,540 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static gitlet.Utils.*;
+
+/** A cache of the shape of the commit history: for every commit, its id,
+ *  its parents, its generation number, its time and its message, so that
+ *  log, global-log and ancestry queries need not read commit objects.
+ *
+ *  Commits are referred to by their position in the graph.  The graph file
+ *  (.gitlet/commit-graph) is the magic "GCGR", a version int and a commit
+ *  count N, a 256-entry fan-out table like a pack index's, and then these
+ *  columns, each in id order:
+ *
+ *      the 20-byte ids,
+ *      the position of each commit's first and second parent (ints, NONE
+ *        if it has fewer parents),
+ *      the generation numbers (ints): 1 for a commit with no parents, and
+ *        otherwise one more than the largest generation of its parents,
+ *        so that a commit can only be an ancestor of commits with larger
+ *        generation numbers,
+ *      the commit times in milliseconds (longs),
+ *      N + 1 offsets (longs) into the UTF-8 messages that follow them,
+ *        message I running from offset I to offset I + 1.
+ *
+ *  The file is memory-mapped.  Commits made since it was written are
+ *  appended to .gitlet/commit-graph-new and take the positions after the
+ *  last one in the file; once there are MAX_PENDING of them, the graph is
+ *  rewritten.  A graph that is missing or behind the object store is
+ *  rebuilt from the commit objects.
+ */
+class CommitGraph {
+
+    /** The graph file and the commits appended since it was written. */
+    static final File FILE = join(Repository.GITLET_DIR, "commit-graph");
+    static final File PENDING = join(Repository.GITLET_DIR, "commit-graph-new");
+
+    /** Position standing for no commit. */
+    static final int NONE = -1;
+
+    /** Magic number and version of the graph file. */
+    private static final byte[] MAGIC = "GCGR".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    /** Size of the graph header: magic, version, count and fan-out. */
+    private static final int HEADER = 12 + 256 * 4;
+
+    /** Length of an id in bytes. */
+    private static final int SHA_BYTES = UID_LENGTH / 2;
+
+    /** Number of parents recorded for each commit. */
+    private static final int MAX_PARENTS = 2;
+
+    /** Number of appended commits that triggers a rewrite of the graph. */
+    private static final int MAX_PENDING = 256;
+
+    /** The mapped graph file, or null until it is first needed. */
+    private static MappedByteBuffer graph;
+    /** The stamp (see Utils.stamp) of FILE and PENDING when they were
+     *  loaded. */
+    private static long loadedStamp;
+    /** Number of commits in the graph file. */
+    private static int count;
+    /** Offsets of the columns in the graph file. */
+    private static int parentsAt, generationsAt, timesAt, offsetsAt;
+    /** The appended commits, in order, and their positions by id. */
+    private static List<Node> pending;
+    private static HashMap<String, Integer> pendingPositions;
+
+    /** Records COMMIT, which has just been saved. */
+    static void add(Commit commit) {
+        if (!FILE.exists()) {
+            rebuild();
+            return;
+        }
+        load();
+        if (lookup(commit.getId()) != NONE) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                 new FileOutputStream(PENDING, true))) {
+            Node node = Node.of(commit);
+            out.write(fromHex(node.id));
+            writeVarint(out, node.parents.length);
+            for (String parent : node.parents) {
+                out.write(fromHex(parent));
+            }
+            writeVarint(out, node.time);
+            writeString(out, node.message);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (pending.size() + 1 >= MAX_PENDING) {
+            graph = null;
+            load();
+            List<Node> nodes = new ArrayList<>();
+            for (int i = 0; i < size(); i += 1) {
+                nodes.add(nodeAt(i));
+            }
+            write(nodes);
+        } else {
+            graph = null;
+        }
+    }
+
+    /** Rewrites the graph from the commit objects. */
+    static void rebuild() {
+        List<Node> nodes = new ArrayList<>();
+        for (String id : ObjectStore.list(ObjectStore.Kind.COMMIT)) {
+            nodes.add(Node.of(Commit.read(id, true)));
+        }
+        write(nodes);
+    }
+
+    /** Forgets the loaded graph if the graph file or the appended commits
+     *  have changed since they were loaded, as by another process. */
+    static void revalidate() {
+        if (graph != null && stamp(FILE, PENDING) != loadedStamp) {
+            graph = null;
+        }
+    }
+
+    /** Returns the number of commits in the graph. */
+    static int size() {
+        load();
+        return count + pending.size();
+    }
+
+    /** Returns the position of the commit named ID, or NONE if there is no
+     *  such commit. */
+    static int find(String id) {
+        load();
+        int result = lookup(id);
+        if (result == NONE && ObjectStore.contains(ObjectStore.Kind.COMMIT, id)) {
+            rebuild();
+            load();
+            result = lookup(id);
+        }
+        return result;
+    }
+
+    /** Returns the id of the commit at position POS. */
+    static String idAt(int pos) {
+        if (pos >= count) {
+            return pending.get(pos - count).id;
+        }
+        byte[] sha = new byte[SHA_BYTES];
+        graph.get(HEADER + pos * SHA_BYTES, sha);
+        return toHex(sha);
+    }
+
+    /** Returns the position of parent K (0 for the first parent, 1 for
+     *  the second) of the commit at position POS, or NONE. */
+    static int parentAt(int pos, int k) {
+        if (pos >= count) {
+            int[] parents = pending.get(pos - count).parentPositions;
+            return k < parents.length ? parents[k] : NONE;
+        }
+        return graph.getInt(parentsAt + (pos * MAX_PARENTS + k) * 4);
+    }
+
+    /** Returns the generation number of the commit at position POS. */
+    static int generationAt(int pos) {
+        if (pos >= count) {
+            return pending.get(pos - count).generation;
+        }
+        return graph.getInt(generationsAt + pos * 4);
+    }
+
+    /** Returns the time in milliseconds of the commit at position POS. */
+    static long timeAt(int pos) {
+        if (pos >= count) {
+            return pending.get(pos - count).time;
+        }
+        return graph.getLong(timesAt + pos * 8);
+    }
+
+    /** Returns the message of the commit at position POS. */
+    static String messageAt(int pos) {
+        if (pos >= count) {
+            return pending.get(pos - count).message;
+        }
+        long start = graph.getLong(offsetsAt + pos * 8);
+        long end = graph.getLong(offsetsAt + (pos + 1) * 8);
+        byte[] bytes = new byte[(int) (end - start)];
+        graph.get((int) start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Returns the position of a latest common ancestor of the commits at
+     *  positions A and B, that is, a common ancestor that is not an
+     *  ancestor of any other common ancestor, or NONE if they have no
+     *  common ancestor.
+     *
+     *  Commits are visited newest generation first, marking each with the
+     *  sides (A's, B's or both) it was reached from.  A commit is visited
+     *  only after all of its descendants that were reached, so the first
+     *  one visited that is reached from both sides is the answer, and
+     *  ancestors older than the answer are never visited at all. */
+    static int mergeBase(int a, int b) {
+        final int fromA = 1;
+        final int fromB = 2;
+        HashMap<Integer, Integer> reached = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+            Comparator.<Integer>comparingInt(pos -> -generationAt(pos))
+                      .thenComparingLong(pos -> -timeAt(pos)));
+        reached.put(a, fromA);
+        queue.add(a);
+        if (reached.merge(b, fromB, (x, y) -> x | y) == fromB) {
+            queue.add(b);
+        }
+        while (!queue.isEmpty()) {
+            int pos = queue.poll();
+            int sides = reached.get(pos);
+            if (sides == (fromA | fromB)) {
+                return pos;
+            }
+            for (int k = 0; k < MAX_PARENTS; k += 1) {
+                int parent = parentAt(pos, k);
+                if (parent == NONE) {
+                    continue;
+                }
+                Integer old = reached.get(parent);
+                if (old == null) {
+                    reached.put(parent, sides);
+                    queue.add(parent);
+                } else {
+                    // the parent is still queued, as it is older than pos
+                    reached.put(parent, old | sides);
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /** Returns the positions of all commits in the order of their ids. */
+    static int[] inIdOrder() {
+        load();
+        Integer[] appended = new Integer[pending.size()];
+        for (int i = 0; i < appended.length; i += 1) {
+            appended[i] = count + i;
+        }
+        Arrays.sort(appended, Comparator.comparing(CommitGraph::idAt));
+        int[] result = new int[size()];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < result.length; k += 1) {
+            if (j == appended.length
+                || (i < count && idAt(i).compareTo(idAt(appended[j])) < 0)) {
+                result[k] = i;
+                i += 1;
+            } else {
+                result[k] = appended[j];
+                j += 1;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the position of the commit named ID among those loaded, or
+     *  NONE. */
+    private static int lookup(String id) {
+        Integer appended = pendingPositions.get(id);
+        if (appended != null) {
+            return appended;
+        }
+        if (id.length() != UID_LENGTH || !id.matches("[0-9a-f]*")) {
+            return NONE;
+        }
+        byte[] key = fromHex(id);
+        int first = key[0] & 0xFF;
+        int lo = first == 0 ? 0 : graph.getInt(12 + (first - 1) * 4);
+        int hi = graph.getInt(12 + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareAt(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return NONE;
+    }
+
+    /** Compares the id at position I of the graph file with KEY. */
+    private static int compareAt(int i, byte[] key) {
+        int base = HEADER + i * SHA_BYTES;
+        for (int k = 0; k < SHA_BYTES; k += 1) {
+            int cmp = (graph.get(base + k) & 0xFF) - (key[k] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the commit at position POS as a Node. */
+    private static Node nodeAt(int pos) {
+        List<String> parents = new ArrayList<>();
+        for (int k = 0; k < MAX_PARENTS && parentAt(pos, k) != NONE; k += 1) {
+            parents.add(idAt(parentAt(pos, k)));
+        }
+        return new Node(idAt(pos), parents.toArray(new String[0]),
+                        timeAt(pos), messageAt(pos));
+    }
+
+    /** Maps the graph file and reads the appended commits, if that has not
+     *  been done since they last changed, rebuilding the graph if it is
+     *  missing or inconsistent. */
+    private static void load() {
+        if (graph != null) {
+            return;
+        }
+        if (!FILE.exists()) {
+            rebuild();
+        }
+        loadedStamp = stamp(FILE, PENDING);
+        try (FileChannel in = FileChannel.open(FILE.toPath(),
+                                               StandardOpenOption.READ)) {
+            graph = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        byte[] magic = new byte[4];
+        graph.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC) || graph.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("bad commit graph " + FILE);
+        }
+        count = graph.getInt(8);
+        parentsAt = HEADER + count * SHA_BYTES;
+        generationsAt = parentsAt + count * MAX_PARENTS * 4;
+        timesAt = generationsAt + count * 4;
+        offsetsAt = timesAt + count * 8;
+
+        pending = new ArrayList<>();
+        pendingPositions = new HashMap<>();
+        if (!PENDING.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                 new ByteArrayInputStream(readContents(PENDING)))) {
+            while (true) {
+                byte[] id = new byte[SHA_BYTES];
+                try {
+                    in.readFully(id);
+                } catch (EOFException excp) {
+                    break;
+                }
+                String[] parents = new String[(int) readVarint(in)];
+                for (int k = 0; k < parents.length; k += 1) {
+                    byte[] parent = new byte[SHA_BYTES];
+                    in.readFully(parent);
+                    parents[k] = toHex(parent);
+                }
+                Node node = new Node(toHex(id), parents, readVarint(in),
+                                     readString(in));
+                node.parentPositions = new int[parents.length];
+                node.generation = 1;
+                for (int k = 0; k < parents.length; k += 1) {
+                    int parent = lookup(parents[k]);
+                    if (parent == NONE) {
+                        throw new IOException("unknown parent");
+                    }
+                    node.parentPositions[k] = parent;
+                    node.generation = Math.max(node.generation,
+                                               generationAt(parent) + 1);
+                }
+                pendingPositions.put(node.id, count + pending.size());
+                pending.add(node);
+            }
+        } catch (IOException excp) {
+            // a torn or stale append: start over from the objects
+            graph = null;
+            rebuild();
+            load();
+        }
+    }
+
+    /** Writes a graph holding NODES, replacing the graph file and any
+     *  appended commits. */
+    static void write(List<Node> nodes) {
+        nodes.sort(Comparator.comparing(node -> node.id));
+        int n = nodes.size();
+        HashMap<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < n; i += 1) {
+            positions.put(nodes.get(i).id, i);
+        }
+        int[] parents = new int[n * MAX_PARENTS];
+        Arrays.fill(parents, NONE);
+        for (int i = 0; i < n; i += 1) {
+            String[] ids = nodes.get(i).parents;
+            for (int k = 0; k < ids.length && k < MAX_PARENTS; k += 1) {
+                parents[i * MAX_PARENTS + k] = positions.getOrDefault(ids[k], NONE);
+            }
+        }
+        int[] generations = generations(parents, n);
+
+        byte[][] messages = new byte[n][];
+        long messageBytes = 0;
+        for (int i = 0; i < n; i += 1) {
+            messages[i] = nodes.get(i).message.getBytes(StandardCharsets.UTF_8);
+            messageBytes += messages[i].length;
+        }
+        long size = HEADER + (long) n * (SHA_BYTES + MAX_PARENTS * 4 + 4 + 8)
+            + (n + 1) * 8L + messageBytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("commit graph too large");
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        buf.put(MAGIC).putInt(VERSION).putInt(n);
+        int[] fanout = new int[256];
+        for (Node node : nodes) {
+            fanout[Integer.parseInt(node.id.substring(0, 2), 16)] += 1;
+        }
+        int total = 0;
+        for (int b = 0; b < 256; b += 1) {
+            total += fanout[b];
+            buf.putInt(total);
+        }
+        for (Node node : nodes) {
+            buf.put(fromHex(node.id));
+        }
+        for (int parent : parents) {
+            buf.putInt(parent);
+        }
+        for (int generation : generations) {
+            buf.putInt(generation);
+        }
+        for (Node node : nodes) {
+            buf.putLong(node.time);
+        }
+        long offset = buf.position() + (n + 1) * 8L;
+        for (byte[] message : messages) {
+            buf.putLong(offset);
+            offset += message.length;
+        }
+        buf.putLong(offset);
+        for (byte[] message : messages) {
+            buf.put(message);
+        }
+
+        File tmp = tempFile(Repository.GITLET_DIR, "tmp-commit-graph");
+        writeContents(tmp, (Object) buf.array());
+        graph = null;
+        if (!tmp.renameTo(FILE)) {
+            throw new IllegalArgumentException("could not write " + FILE);
+        }
+        PENDING.delete();
+    }
+
+    /** Returns the generation numbers of N commits whose parents'
+     *  positions are PARENTS, MAX_PARENTS to a commit. */
+    private static int[] generations(int[] parents, int n) {
+        int[] result = new int[n];
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int start = 0; start < n; start += 1) {
+            if (result[start] != 0) {
+                continue;
+            }
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                int pos = stack.peek();
+                int generation = 1;
+                boolean ready = true;
+                for (int k = 0; k < MAX_PARENTS; k += 1) {
+                    int parent = parents[pos * MAX_PARENTS + k];
+                    if (parent == NONE) {
+                        continue;
+                    } else if (result[parent] == 0) {
+                        stack.push(parent);
+                        ready = false;
+                    } else {
+                        generation = Math.max(generation, result[parent] + 1);
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    result[pos] = generation;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** A commit as recorded in the graph. */
+    static class Node {
+        /** The commit's id, parents' ids, time and message. */
+        final String id;
+        final String[] parents;
+        final long time;
+        final String message;
+        /** For appended commits, the positions of the parents and the
+         *  generation number. */
+        int[] parentPositions;
+        int generation;
+
+        Node(String id, String[] parents, long time, String message) {
+            this.id = id;
+            this.parents = parents;
+            this.time = time;
+            this.message = message;
+        }
+
+        /** Returns the Node recording COMMIT. */
+        static Node of(Commit commit) {
+            List<String> parents = new ArrayList<>();
+            if (commit.getParentSHA() != null) {
+                parents.add(commit.getParentSHA());
+            }
+            if (commit.getSecondParentSHA() != null) {
+                parents.add(commit.getSecondParentSHA());
+            }
+            return new Node(commit.getId(), parents.toArray(new String[0]),
+                            commit.getCommitTime().getTime(), commit.getMessage());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** A sorted index of the ids of all commits, used to resolve abbreviated
+ *  commit ids without listing the object store.
+ *
+ *  The index file (.gitlet/commit-ids) is the magic "GCID", a version int
+ *  and an id count, a 256-entry fan-out table like a pack index's, and
+ *  then the sorted 20-byte ids.  It is memory-mapped and binary-searched
+ *  in place.  Rather than rewriting it on every commit, the ids of new
+ *  commits are appended to .gitlet/commit-ids-new, which is folded into
+ *  the sorted file once it holds MAX_PENDING ids; a lookup therefore costs
+ *  O(log n + MAX_PENDING).
+ *
+ *  Repositories made before the index existed get one built from the
+ *  object store the first time it is needed.  Since commits reach the
+ *  object store before the index, an index left behind by an interrupted
+ *  command can miss commits; a prefix that matches nothing in the index is
+ *  therefore checked against the object store, and the index rebuilt if
+ *  the store has a match.
+ */
+class CommitIndex {
+
+    /** The sorted index and the ids appended since it was written. */
+    static final File FILE = join(Repository.GITLET_DIR, "commit-ids");
+    static final File PENDING = join(Repository.GITLET_DIR, "commit-ids-new");
+
+    /** Magic number and version of the index file. */
+    private static final byte[] MAGIC = "GCID".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    /** Size of the index header: magic, version, count and fan-out. */
+    private static final int HEADER = 12 + 256 * 4;
+
+    /** Length of an id in bytes. */
+    private static final int SHA_BYTES = UID_LENGTH / 2;
+
+    /** Number of appended ids that triggers a rewrite of the index. */
+    private static final int MAX_PENDING = 256;
+
+    /** The mapped index, or null until it is first needed. */
+    private static MappedByteBuffer index;
+    /** The stamp (see Utils.stamp) of FILE when it was mapped. */
+    private static long indexStamp;
+
+    /** Records that the commit ID has been written to the object store. */
+    static void add(String id) {
+        if (!FILE.exists()) {
+            rebuild();
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(PENDING, true)) {
+            out.write(fromHex(id));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (PENDING.length() >= MAX_PENDING * SHA_BYTES) {
+            TreeSet<String> ids = new TreeSet<>(pending());
+            for (int i = 0; i < count(); i += 1) {
+                ids.add(idAt(i));
+            }
+            write(ids);
+        }
+    }
+
+    /** Forgets the mapped index if the index file has changed since it was
+     *  mapped, as by another process. */
+    static void revalidate() {
+        if (index != null && stamp(FILE) != indexStamp) {
+            index = null;
+        }
+    }
+
+    /** Rewrites the index from the commits in the object store. */
+    static void rebuild() {
+        write(new TreeSet<>(ObjectStore.list(ObjectStore.Kind.COMMIT)));
+    }
+
+    /** Returns the sorted ids of the commits that start with the
+     *  hexadecimal numeral PREFIX, which has at least two digits. */
+    static List<String> resolve(String prefix) {
+        if (!FILE.exists()) {
+            rebuild();
+        }
+        List<String> result = lookup(prefix);
+        if (result.isEmpty()
+            && !ObjectStore.listPrefix(ObjectStore.Kind.COMMIT, prefix).isEmpty()) {
+            rebuild();
+            result = lookup(prefix);
+        }
+        return result;
+    }
+
+    /** Returns the sorted ids in the index that start with PREFIX. */
+    private static List<String> lookup(String prefix) {
+        TreeSet<String> result = new TreeSet<>();
+        int first = Integer.parseInt(prefix.substring(0, 2), 16);
+        int lo = first == 0 ? 0 : fanout(first - 1);
+        int hi = fanout(first);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (idAt(mid).compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < count() && idAt(i).startsWith(prefix); i += 1) {
+            result.add(idAt(i));
+        }
+        for (String id : pending()) {
+            if (id.startsWith(prefix)) {
+                result.add(id);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** Returns the ids appended since the index was last written. */
+    private static List<String> pending() {
+        List<String> result = new ArrayList<>();
+        if (PENDING.exists()) {
+            byte[] bytes = readContents(PENDING);
+            for (int i = 0; i + SHA_BYTES <= bytes.length; i += SHA_BYTES) {
+                result.add(toHex(Arrays.copyOfRange(bytes, i, i + SHA_BYTES)));
+            }
+        }
+        return result;
+    }
+
+    /** Writes an index holding the sorted IDS, replacing the old index and
+     *  any appended ids. */
+    private static void write(TreeSet<String> ids) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + ids.size() * SHA_BYTES);
+        buf.put(MAGIC).putInt(VERSION).putInt(ids.size());
+        int[] fanout = new int[256];
+        for (String id : ids) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        int total = 0;
+        for (int b = 0; b < 256; b += 1) {
+            total += fanout[b];
+            buf.putInt(total);
+        }
+        for (String id : ids) {
+            buf.put(fromHex(id));
+        }
+        File tmp = tempFile(Repository.GITLET_DIR, "tmp-commit-ids");
+        writeContents(tmp, (Object) buf.array());
+        index = null;
+        if (!tmp.renameTo(FILE)) {
+            throw new IllegalArgumentException("could not write " + FILE);
+        }
+        PENDING.delete();
+    }
+
+    /** Returns the mapped index. */
+    private static MappedByteBuffer index() {
+        if (index == null) {
+            indexStamp = stamp(FILE);
+            try (FileChannel in = FileChannel.open(FILE.toPath(),
+                                                   StandardOpenOption.READ)) {
+                index = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            byte[] magic = new byte[4];
+            index.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC) || index.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("bad commit index " + FILE);
+            }
+        }
+        return index;
+    }
+
+    /** Returns the number of ids in the sorted index. */
+    private static int count() {
+        return index().getInt(8);
+    }
+
+    /** Returns the cumulative fan-out count for the first byte B. */
+    private static int fanout(int b) {
+        return index().getInt(12 + b * 4);
+    }
+
+    /** Returns the id at position I of the sorted index. */
+    private static String idAt(int i) {
+        byte[] sha = new byte[SHA_BYTES];
+        index().get(HEADER + i * SHA_BYTES, sha);
+        return toHex(sha);
+    }
+}
@@ -0,0 +1,177 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static gitlet.Utils.*;
+
+/** A long-lived server that runs gitlet commands in the repository in its
+ *  working directory, so that they pay for JVM startup and class loading
+ *  once, and find the packs, commit graph, commit index and stat cache
+ *  already loaded.  Its main program may be invoked as
+ *      java gitlet.Daemon
+ *  from the directory holding .gitlet, to serve requests until stopped by
+ *      java gitlet.Daemon stop
+ *  Commands are sent to it by Client.
+ *
+ *  The daemon listens on the Unix-domain socket .gitlet/daemon.sock and
+ *  serves one connection, and so one command, at a time.  A request is
+ *  the tag RUN, the client's working directory (as by Utils.writeString)
+ *  and the command's arguments (a varint count, then each argument); or
+ *  the tag STOP.  The reply is a sequence of OUT and ERR frames, each a
+ *  varint length and that many bytes of standard output or standard error,
+ *  ending with EXIT and the varint exit status the command would have had
+ *  under Main.main.  A request from another working directory is answered
+ *  with REFUSED, and the client runs the command itself.
+ *
+ *  Each command runs through Main.run, which takes the repository's Lock
+ *  and then drops cached state whose files have changed since it was read
+ *  (as when the repository is also used without the daemon).
+ */
+public class Daemon {
+
+    /** The socket the daemon listens on. */
+    static final File SOCKET = join(Repository.GITLET_DIR, "daemon.sock");
+
+    /** Request tags. */
+    static final int RUN = 'r', STOP = 's';
+    /** Reply tags. */
+    static final int OUT = 'o', ERR = 'e', EXIT = 'x', REFUSED = 'n';
+
+    /** Serves the repository in the working directory, or with ARGS
+     *  "stop", stops the daemon serving it. */
+    public static void main(String... args) {
+        if (args.length == 1 && args[0].equals("stop")) {
+            Client.stop();
+            return;
+        } else if (args.length != 0) {
+            System.err.println("Usage: java gitlet.Daemon [stop]");
+            System.exit(1);
+        }
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            System.out.println("Not in an initialized Gitlet directory.");
+            System.exit(0);
+        }
+        try {
+            serve();
+        } catch (IOException excp) {
+            System.err.println("gitlet daemon: " + excp.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Accepts and runs requests until asked to stop. */
+    private static void serve() throws IOException {
+        if (SOCKET.exists()) {
+            try (SocketChannel other = Client.connect()) {
+                if (other != null) {
+                    throw new IOException("already running");
+                }
+            }
+            SOCKET.delete();
+        }
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(SOCKET.toPath()));
+        Runtime.getRuntime().addShutdownHook(new Thread(SOCKET::delete));
+
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        boolean stopped = false;
+        while (!stopped) {
+            try (SocketChannel client = server.accept()) {
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(client)));
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(client),
+                                             BUFFER_SIZE));
+                int tag = in.readUnsignedByte();
+                if (tag == STOP) {
+                    stopped = true;
+                    out.writeByte(EXIT);
+                    writeVarint(out, 0);
+                } else if (!readString(in).equals(Repository.CWD.getPath())) {
+                    out.writeByte(REFUSED);
+                } else {
+                    String[] args = new String[(int) readVarint(in)];
+                    for (int i = 0; i < args.length; i += 1) {
+                        args[i] = readString(in);
+                    }
+                    int status = execute(args, out);
+                    out.writeByte(EXIT);
+                    writeVarint(out, status);
+                }
+                out.flush();
+            } catch (IOException excp) {
+                // the client went away; serve the next one
+            } finally {
+                System.setOut(stdout);
+                System.setErr(stderr);
+            }
+        }
+        server.close();
+        SOCKET.delete();
+    }
+
+    /** Runs the command ARGS as Main.main would, sending its output to OUT
+     *  in frames, and returns the exit status main would have had. */
+    private static int execute(String[] args, DataOutputStream out) {
+        PrintStream stdout = new PrintStream(
+            new BufferedOutputStream(new Frames(out, OUT), BUFFER_SIZE), false);
+        PrintStream stderr = new PrintStream(
+            new BufferedOutputStream(new Frames(out, ERR), BUFFER_SIZE), false);
+        System.setOut(stdout);
+        System.setErr(stderr);
+        int status = 0;
+        try {
+            System.out.print(Main.run(args));
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } catch (RuntimeException | Error excp) {
+            // as the JVM reports an exception that escapes main
+            System.out.flush();
+            System.err.print("Exception in thread \"main\" ");
+            excp.printStackTrace();
+            status = 1;
+        } finally {
+            stdout.flush();
+            stderr.flush();
+        }
+        return status;
+    }
+
+    /** A stream that sends what is written to it as frames tagged TAG. */
+    private static class Frames extends OutputStream {
+        private final DataOutputStream out;
+        private final int tag;
+
+        Frames(DataOutputStream out, int tag) {
+            this.out = out;
+            this.tag = tag;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                out.writeByte(tag);
+                writeVarint(out, len);
+                out.write(b, off, len);
+            }
+        }
+    }
+}
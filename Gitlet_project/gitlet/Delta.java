@@ -0,0 +1,146 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import static gitlet.Utils.*;
+
+/** Delta encoding of one byte sequence (the target) against another (the
+ *  base), used to store blob versions in packs.
+ *
+ *  A delta is the varint sizes of the base and the target, followed by a
+ *  sequence of instructions, each either
+ *
+ *      COPY, varint offset, varint length: copy LENGTH bytes of the base
+ *                                          starting at OFFSET, or
+ *      INSERT, varint length, bytes:       append the given bytes.
+ *
+ *  Matches are found by indexing the base in blocks of BLOCK bytes and
+ *  looking up every position of the target in that index, so a delta
+ *  against a similar base costs roughly linear time.
+ */
+class Delta {
+
+    /** Instruction codes. */
+    private static final int INSERT = 0, COPY = 1;
+
+    /** Size of the blocks of the base that are indexed. */
+    private static final int BLOCK = 16;
+
+    /** Returns a delta that turns BASE into TARGET. */
+    static byte[] create(byte[] base, byte[] target) {
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeVarint(out, base.length);
+            writeVarint(out, target.length);
+            int literal = 0;
+            int p = 0;
+            while (p < target.length) {
+                Integer offset = p + BLOCK <= target.length
+                    ? blocks.get(hash(target, p)) : null;
+                if (offset == null || !matches(base, offset, target, p, BLOCK)) {
+                    p += 1;
+                    continue;
+                }
+                // extends the match forwards, and backwards into any
+                // pending literal bytes
+                int start = offset;
+                int tstart = p;
+                while (start > 0 && tstart > literal
+                       && base[start - 1] == target[tstart - 1]) {
+                    start -= 1;
+                    tstart -= 1;
+                }
+                int end = offset + BLOCK;
+                int tend = p + BLOCK;
+                while (end < base.length && tend < target.length
+                       && base[end] == target[tend]) {
+                    end += 1;
+                    tend += 1;
+                }
+                writeInsert(out, target, literal, tstart);
+                out.writeByte(COPY);
+                writeVarint(out, start);
+                writeVarint(out, end - start);
+                p = tend;
+                literal = tend;
+            }
+            writeInsert(out, target, literal, target.length);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the result of applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        try {
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(delta));
+            if (readVarint(in) != base.length) {
+                throw new IllegalArgumentException("delta applied to wrong base");
+            }
+            byte[] result = new byte[(int) readVarint(in)];
+            int p = 0;
+            while (p < result.length) {
+                int op = in.readUnsignedByte();
+                if (op == COPY) {
+                    int offset = (int) readVarint(in);
+                    int length = (int) readVarint(in);
+                    System.arraycopy(base, offset, result, p, length);
+                    p += length;
+                } else if (op == INSERT) {
+                    int length = (int) readVarint(in);
+                    in.readFully(result, p, length);
+                    p += length;
+                } else {
+                    throw new IllegalArgumentException("corrupt delta");
+                }
+            }
+            return result;
+        } catch (IOException | IndexOutOfBoundsException excp) {
+            throw new IllegalArgumentException("corrupt delta");
+        }
+    }
+
+    /** Writes an instruction inserting TARGET[FROM..TO) to OUT, if that
+     *  range is not empty. */
+    private static void writeInsert(DataOutputStream out, byte[] target,
+                                    int from, int to) throws IOException {
+        if (from < to) {
+            out.writeByte(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    /** Returns true if the LEN bytes of A at I equal those of B at J. */
+    private static boolean matches(byte[] a, int i, byte[] b, int j, int len) {
+        for (int k = 0; k < len; k += 1) {
+            if (a[i + k] != b[j + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns a hash of the BLOCK bytes of DATA starting at I. */
+    private static int hash(byte[] data, int i) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k += 1) {
+            h = 31 * h + data[i + k];
+        }
+        return h;
+    }
+}
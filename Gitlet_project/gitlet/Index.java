@@ -0,0 +1,184 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+
+import static gitlet.Utils.*;
+
+/** A persistent stat cache kept in .gitlet/index.  For each file that has
+ *  been hashed it records the file's size, modification time, inode and
+ *  SHA-1, so that a file's contents only need to be read again when its
+ *  stat data changes.
+ *
+ *  Like git's index, an entry is only trusted if the file was last modified
+ *  strictly before the index itself was written; a file changed within the
+ *  same timestamp tick as the index is always rehashed.
+ *
+ *  An Index may be used from several threads at once, as when files are
+ *  hashed in parallel; its entries are guarded by its lock.
+ *
+ *  The index only caches what can be found again from the files, so an
+ *  index file that cannot be read, whether damaged or written by an
+ *  incompatible version, is treated as empty and rebuilt as files are
+ *  hashed.
+ */
+class Index implements Serializable {
+
+    /** Pinned, so that an index stays readable across builds that do not
+     *  change its fields. */
+    private static final long serialVersionUID = -2380465920718332871L;
+
+    /** The cached stat data and SHA-1 of a single file. */
+    private static class Entry implements Serializable {
+        private static final long serialVersionUID = 5237196027345541092L;
+        private long size;
+        private long mtime;
+        private String inode;
+        private String sha;
+    }
+
+    /** The index of the current repository, or null if not yet loaded. */
+    private static Index current;
+
+    /** Returns the index of the current repository, reading it from disk
+     *  the first time it is needed. */
+    static Index get() {
+        if (current == null) {
+            if (Repository.INDEX.exists()) {
+                long stamp = stamp(Repository.INDEX);
+                try {
+                    current = readObject(Repository.INDEX, Index.class);
+                    current.savedAt = Repository.INDEX.lastModified();
+                } catch (IllegalArgumentException excp) {
+                    current = new Index();
+                    current.dirty = true;
+                }
+                current.stamp = stamp;
+            } else {
+                current = new Index();
+            }
+        }
+        return current;
+    }
+
+    /** Writes the index of the current repository back to disk, if it was
+     *  loaded and has changed. */
+    static void flush() {
+        if (current != null && current.dirty
+            && Repository.GITLET_DIR.isDirectory()) {
+            current.dirty = false;
+            Journal.write(Repository.INDEX, serialize(current));
+            current.savedAt = Repository.INDEX.lastModified();
+            current.stamp = stamp(Repository.INDEX);
+        }
+    }
+
+    /** Forgets the index of the current repository if it has no unsaved
+     *  changes and the index file has changed since it was read or
+     *  written, as by another process. */
+    static void revalidate() {
+        if (current != null && !current.dirty
+            && stamp(Repository.INDEX) != current.stamp) {
+            current = null;
+        }
+    }
+
+    /** Maps a path relative to the CWD to its cached entry. */
+    private HashMap<String, Entry> entries = new HashMap<>();
+
+    /** The modification time of the index file when it was read. */
+    private transient long savedAt;
+
+    /** The stamp (see Utils.stamp) of the index file when it was last
+     *  read or written. */
+    private transient long stamp;
+
+    /** True if entries have changed since the index was read. */
+    private transient boolean dirty;
+
+    /** Returns the SHA-1 of the contents of FILE, only reading FILE if its
+     *  stat data does not match the cached entry. */
+    String sha1(File file) {
+        String sha = cachedSha1(file);
+        if (sha == null) {
+            Entry stat = stat(file);
+            sha = Utils.sha1(file);
+            record(keyOf(file), stat, sha);
+        }
+        return sha;
+    }
+
+    /** Returns the cached SHA-1 of FILE if its stat data still matches the
+     *  cached entry, and otherwise null. */
+    String cachedSha1(File file) {
+        Entry stat = stat(file);
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(keyOf(file));
+        }
+        if (cached != null && stat != null && stat.mtime < savedAt
+            && cached.size == stat.size && cached.mtime == stat.mtime
+            && cached.inode.equals(stat.inode)) {
+            return cached.sha;
+        }
+        return null;
+    }
+
+    /** Copies SOURCE to DEST in a single streaming pass and returns the
+     *  SHA-1 of its contents, recording it as the hash of both files. */
+    String copyAndHash(File source, File dest) {
+        Entry stat = stat(source);
+        String sha = Utils.copyAndHash(source, dest);
+        record(keyOf(source), stat, sha);
+        record(keyOf(dest), stat(dest), sha);
+        return sha;
+    }
+
+    /** Records that FILE, whose stat data has not been read, has SHA. */
+    void update(File file, String sha) {
+        record(keyOf(file), stat(file), sha);
+    }
+
+    /** Drops the cached entry for FILE. */
+    synchronized void remove(File file) {
+        if (entries.remove(keyOf(file)) != null) {
+            dirty = true;
+        }
+    }
+
+    /** Stores SHA with the stat data STAT under KEY. */
+    private synchronized void record(String key, Entry stat, String sha) {
+        if (stat == null) {
+            return;
+        }
+        stat.sha = sha;
+        entries.put(key, stat);
+        dirty = true;
+    }
+
+    /** Returns the key under which FILE is cached: its path relative to
+     *  the CWD. */
+    private static String keyOf(File file) {
+        return Repository.CWD.toPath().relativize(
+            file.getAbsoluteFile().toPath()).toString();
+    }
+
+    /** Returns the stat data of FILE, or null if it cannot be read. */
+    private static Entry stat(File file) {
+        try {
+            BasicFileAttributes attrs =
+                Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            Entry result = new Entry();
+            result.size = attrs.size();
+            result.mtime = attrs.lastModifiedTime().toMillis();
+            result.inode = String.valueOf(attrs.fileKey());
+            return result;
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** A rollback journal that makes the changes a command (or a batch of
+ *  commands) makes to the .gitlet directory atomic: after a crash, the
+ *  repository is as it was before the command or as it is after it, never
+ *  in between.
+ *
+ *  Before a file in .gitlet is rewritten or deleted, its old contents are
+ *  moved (or, for a file about to be moved elsewhere, linked) into
+ *  .gitlet/journal/saved under the same relative path; before a new file
+ *  is created, an empty marker is made under .gitlet/journal/created.
+ *  Both are a single rename or create, so the journal never holds more
+ *  than one entry per file changed.  Objects need no journal, since they
+ *  are never changed once written, but they are synced with the rest.
+ *
+ *  commit, which Main calls once the command's state has been flushed,
+ *  syncs every file written since the last commit in one group and then
+ *  retires the journal by renaming it to .gitlet/journal-done, which is
+ *  then deleted.  recover, which runs before a command, finds a journal
+ *  left by a command that did not get that far and undoes it: it deletes
+ *  the files it created and moves the saved files back.  Both take time in
+ *  proportion to the size of the journal, not of the repository.
+ *
+ *  So that this holds after a power failure as well as after a process
+ *  dies, the journal is forced to disk in order.  Each entry's directory
+ *  (and the directory holding any it needed made) is synced as the entry
+ *  is made, before the file it covers is changed.  commit syncs the
+ *  written files and then every directory whose entries changed before
+ *  renaming the journal, and syncs .gitlet after the rename and after the
+ *  delete; recover syncs the directories it restored before retiring the
+ *  journal.
+ *
+ *  The index-like files derived from the objects (see CommitIndex,
+ *  CommitGraph and MessageIndex) are not journaled.  They are written
+ *  after the objects they describe, which are never deleted, so a command
+ *  undone part way leaves them at worst missing some of its commits.
+ *  CommitIndex and CommitGraph rebuild themselves when asked for a commit
+ *  that is in the object store but not in them, and MessageIndex when it
+ *  holds fewer commits than CommitGraph.
+ */
+class Journal {
+
+    /** The journal, and the name it is renamed to once committed. */
+    static final File DIR = join(Repository.GITLET_DIR, "journal");
+    private static final File DONE = join(Repository.GITLET_DIR, "journal-done");
+
+    /** The saved contents of changed files, and the markers of created
+     *  files, by path relative to the .gitlet directory. */
+    private static final File SAVED = join(DIR, "saved");
+    private static final File CREATED = join(DIR, "created");
+
+    /** The count of changes committed to the repository, which commit
+     *  bumps with every change. */
+    private static final File GENERATION = join(Repository.GITLET_DIR, "generation");
+
+    /** The paths, relative to .gitlet, already in the journal. */
+    private static final HashSet<String> journaled = new HashSet<>();
+
+    /** The files written since the last commit, to be synced by it. */
+    private static final List<File> unsynced = new ArrayList<>();
+
+    /** True if this process has a journal that it has not committed. */
+    private static boolean active;
+
+    /** The generation of the repository as this process last saw or made
+     *  it, and the number of times it has found the repository changed by
+     *  another process. */
+    private static long generation = -1;
+    private static long changes;
+
+    /** Makes ready to write FILE, a file in .gitlet: moves its contents
+     *  into the journal, or notes there that it is new.  The caller then
+     *  creates FILE afresh. */
+    static synchronized void prepare(File file) {
+        String path = journal(file);
+        if (path != null) {
+            if (file.exists()) {
+                save(file, path);
+            } else {
+                File marker = join(CREATED, path);
+                makeDirectories(marker.getParentFile());
+                try {
+                    marker.createNewFile();
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+                syncDirectory(marker.getParentFile());
+            }
+        }
+        unsynced.add(file);
+    }
+
+    /** Writes CONTENTS to FILE, a file in .gitlet, as part of the current
+     *  change. */
+    static void write(File file, byte[] contents) {
+        prepare(file);
+        writeContents(file, contents);
+    }
+
+    /** Deletes the file at PATH relative to DIR, a directory in .gitlet, as
+     *  part of the current change, pruning directories left empty as
+     *  Utils.deletePath does. */
+    static synchronized void delete(File dir, String path) {
+        File file = join(dir, path);
+        String relative = journal(file);
+        if (relative != null && file.exists()) {
+            save(file, relative);
+        }
+        deletePath(dir, path);
+    }
+
+    /** Keeps the contents of FILE, a file in .gitlet that is about to be
+     *  moved elsewhere (but not changed in place), in the journal. */
+    static synchronized void keep(File file) {
+        String path = journal(file);
+        if (path == null || !file.exists()) {
+            return;
+        }
+        File saved = join(SAVED, path);
+        makeDirectories(saved.getParentFile());
+        try {
+            try {
+                Files.createLink(saved.toPath(), file.toPath());
+            } catch (UnsupportedOperationException | IOException excp) {
+                Files.copy(file.toPath(), saved.toPath());
+                force(saved);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        syncDirectory(saved.getParentFile());
+    }
+
+    /** Notes that FILE, a new object, must be synced by the next commit. */
+    static synchronized void sync(File file) {
+        unsynced.add(file);
+    }
+
+    /** Notes whether another process has committed a change to the
+     *  repository since this one last saw it.  Called with the Lock held. */
+    static synchronized void revalidate() {
+        long current = GENERATION.isFile()
+            ? Long.parseLong(readContentsAsString(GENERATION).trim()) : 0;
+        if (current != generation) {
+            generation = current;
+            changes += 1;
+        }
+    }
+
+    /** Returns the number of times this process has found the repository
+     *  changed by another process (see revalidate). */
+    static synchronized long changes() {
+        return changes;
+    }
+
+    /** Syncs the files written since the last commit and retires the
+     *  journal, making the changes it covers permanent.  A commit that
+     *  changed anything bumps the repository's generation first. */
+    static synchronized void commit() {
+        if (active) {
+            generation = Math.max(generation, 0) + 1;
+            write(GENERATION, (generation + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        List<String> changed = new ArrayList<>(journaled);
+        for (File file : unsynced) {
+            force(file);
+            changed.add(relative(file));
+        }
+        syncParents(changed);
+        unsynced.clear();
+        if (active) {
+            retire();
+            journaled.clear();
+            active = false;
+        }
+    }
+
+    /** Undoes the changes covered by a journal left by a command that did
+     *  not commit, unless the journal is this process's own. */
+    static synchronized void recover() {
+        if (active) {
+            return;
+        }
+        if (DIR.exists()) {
+            List<String> created = plainFilePathsIn(CREATED);
+            for (String path : created) {
+                join(Repository.GITLET_DIR, path).delete();
+            }
+            List<String> saved = plainFilePathsIn(SAVED);
+            for (String path : saved) {
+                File file = join(Repository.GITLET_DIR, path);
+                file.getParentFile().mkdirs();
+                move(join(SAVED, path), file);
+            }
+            syncParents(created);
+            syncParents(saved);
+            retire();
+        } else if (DONE.exists()) {
+            deleteTree(DONE);
+        }
+    }
+
+    /** Starts a journal if need be, and returns the path of FILE relative
+     *  to .gitlet if it is not yet in the journal, or null if it is. */
+    private static String journal(File file) {
+        if (!active) {
+            recover();
+            makeDirectories(DIR);
+            active = true;
+        }
+        String path = relative(file);
+        return journaled.add(path) ? path : null;
+    }
+
+    /** Returns the path of FILE relative to .gitlet. */
+    private static String relative(File file) {
+        return Repository.GITLET_DIR.toPath().relativize(file.toPath())
+                   .toString().replace(File.separatorChar, '/');
+    }
+
+    /** Moves FILE, whose path relative to .gitlet is PATH, into the
+     *  journal. */
+    private static void save(File file, String path) {
+        File saved = join(SAVED, path);
+        makeDirectories(saved.getParentFile());
+        move(file, saved);
+        syncDirectory(saved.getParentFile());
+    }
+
+    /** Renames FROM to TO, replacing TO. */
+    private static void move(File from, File to) {
+        try {
+            Files.move(from.toPath(), to.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Renames the journal to DONE, which is the moment its changes become
+     *  permanent, and deletes it. */
+    private static void retire() {
+        deleteTree(DONE);
+        move(DIR, DONE);
+        syncDirectory(Repository.GITLET_DIR);
+        deleteTree(DONE);
+        syncDirectory(Repository.GITLET_DIR);
+    }
+
+    /** Creates DIR and any missing directories above it, syncing the
+     *  directory that holds each one created. */
+    private static void makeDirectories(File dir) {
+        if (!dir.isDirectory()) {
+            makeDirectories(dir.getParentFile());
+            dir.mkdir();
+            syncDirectory(dir.getParentFile());
+        }
+    }
+
+    /** Syncs the directories above the files at PATHS, relative to
+     *  .gitlet, up to .gitlet itself, so that the renames, creations and
+     *  deletions of those files, and of any directories made or pruned for
+     *  them, are on disk.  Each directory is synced once. */
+    private static void syncParents(Collection<String> paths) {
+        TreeSet<File> dirs = new TreeSet<>();
+        for (String path : paths) {
+            File dir = join(Repository.GITLET_DIR, path).getParentFile();
+            while (dir != null && dirs.add(dir)
+                   && !dir.equals(Repository.GITLET_DIR)) {
+                dir = dir.getParentFile();
+            }
+        }
+        for (File dir : dirs) {
+            syncDirectory(dir);
+        }
+    }
+
+    /** Forces the contents of FILE to disk, if it still exists. */
+    private static void force(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            // deleted or moved since it was written
+        }
+    }
+
+    /** Forces the entries of DIR to disk.  Not every system can open a
+     *  directory to do so; there, this does nothing. */
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(),
+                                                    StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            // cannot be synced here
+        }
+    }
+
+    /** Deletes DIR and everything in it, if it exists. */
+    private static void deleteTree(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteTree(file);
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,78 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+
+import static gitlet.Utils.*;
+
+/** The lock that keeps commands run on one repository by different
+ *  processes from interfering.  A command that only reads the repository
+ *  holds it shared, so that any number of them run at once; any other
+ *  command holds it exclusive, so that the commands that change the
+ *  repository run one at a time and none sees another's changes half
+ *  made.  The lock is an operating-system lock on .gitlet/lock, which is
+ *  released when the process exits, however it exits.
+ *
+ *  A journal left by a process that died while changing the repository
+ *  (see Journal) is undone as the lock is taken, which needs the lock
+ *  exclusive even for a reader.
+ */
+class Lock {
+
+    /** The file locked. */
+    static final File FILE = join(Repository.GITLET_DIR, "lock");
+
+    /** The open lock file and the lock held on it, or null if none is
+     *  held. */
+    private static FileChannel channel;
+    private static FileLock lock;
+
+    /** Takes the lock on the current repository, shared if SHARED, waiting
+     *  for other processes to release it as need be.  Does nothing if there
+     *  is no repository, or if the lock is already held. */
+    static void acquire(boolean shared) {
+        if (lock != null || !Repository.GITLET_DIR.isDirectory()) {
+            return;
+        }
+        try {
+            channel = FileChannel.open(FILE.toPath(), StandardOpenOption.CREATE,
+                                       StandardOpenOption.READ,
+                                       StandardOpenOption.WRITE);
+            lock = channel.lock(0, Long.MAX_VALUE, shared);
+            if (shared && Journal.DIR.exists()) {
+                lock.release();
+                lock = channel.lock(0, Long.MAX_VALUE, false);
+            }
+        } catch (IOException excp) {
+            release();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (!lock.isShared()) {
+            Journal.recover();
+        }
+    }
+
+    /** Returns true if the lock is held shared, so the repository must
+     *  not be changed. */
+    static boolean shared() {
+        return lock != null && lock.isShared();
+    }
+
+    /** Releases the lock, if it is held. */
+    static void release() {
+        try {
+            if (channel != null) {
+                // closing the channel releases the lock
+                channel.close();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            channel = null;
+            lock = null;
+        }
+    }
+}
@@ -1,5 +1,14 @@
 package gitlet;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+
 import static gitlet.Repository.*;
 import static gitlet.Utils.*;
 
@@ -8,6 +17,11 @@ import static gitlet.Utils.*;
  */
 public class Main {
 
+    /** The commands that only read the repository, which run holding the
+     *  repository's Lock shared. */
+    private static final Set<String> READ_ONLY =
+        Set.of("log", "global-log", "find", "status");
+
     /** Usage: java gitlet.Main ARGS, where ARGS contains
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
      */
@@ -124,10 +138,58 @@ public class Main {
      * @param args arguments from the command line
      */
     public static void main(String[] args) {
-        if (args.length == 0) {
-            System.out.println("Please enter a command.");
+        if (args.length > 0 && args[0].equals("batch")) {
+            System.exit(batch(args));
+        }
+        try {
+            System.out.print(run(args));
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
             System.exit(0);
         }
+    }
+
+    /** Runs the command given by ARGS and returns its output.  This is
+     *  gitlet's library entry point: it never prints or exits, and a
+     *  command that fails throws a GitletException whose message is the
+     *  error to report.  Only main decides what errors do to the process. */
+    public static String run(String... args) {
+        lock(args.length > 0 && READ_ONLY.contains(args[0]));
+        try {
+            return execute(args);
+        } finally {
+            try {
+                if (!Lock.shared()) {
+                    flush();
+                }
+            } finally {
+                Lock.release();
+            }
+        }
+    }
+
+    /** Takes the repository's Lock, shared if SHARED, and then forgets
+     *  whatever repository state held in memory other processes have
+     *  changed since it was read. */
+    private static void lock(boolean shared) {
+        Lock.acquire(shared);
+        Journal.revalidate();
+        Index.revalidate();
+        State.revalidate();
+        ObjectStore.revalidate();
+        CommitGraph.revalidate();
+        CommitIndex.revalidate();
+        MessageIndex.revalidate();
+    }
+
+    /** Runs the command given by ARGS and returns its output, as run does,
+     *  but leaves the repository state it changes in memory (see State and
+     *  Index) until the next flush. */
+    private static String execute(String... args) {
+        String output = "";
+        if (args.length == 0) {
+            throw error("Please enter a command.");
+        }
 
         String firstArg = args[0];
         switch(firstArg) {
@@ -137,15 +199,14 @@ public class Main {
                 break;
             case "add":
                 notInitialized();
-                validateNumArgs("add", args, 2);
-                addCommand(args[1]);
+                validateMinArgs("add", args, 2);
+                addCommand(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "commit":
                 notInitialized();
                 validateNumArgs("commit", args, 2);
                 if (args[1].length() == 0) {
-                    System.out.println("Please enter a commit message.");
-                    System.exit(0);
+                    throw error("Please enter a commit message.");
                 }
                 commitCommand(args[1]);
                 break;
@@ -155,14 +216,12 @@ public class Main {
                     checkoutCommandBranch(args[1]);
                 } else if (args.length == 3) {
                     if (!args[1].equals("--")){
-                        System.out.println("Incorrect operands.");
-                        System.exit(0);
+                        throw error("Incorrect operands.");
                     }
                     checkoutCommandHead(args[2]);
                 } else if (args.length == 4) {
                     if (!args[2].equals("--")) {
-                        System.out.println("Incorrect operands.");
-                        System.exit(0);
+                        throw error("Incorrect operands.");
                     }
                     checkoutCommandCommit(args[1], args[3]);
                 } else {
@@ -172,27 +231,31 @@ public class Main {
             case "log":
                 notInitialized();
                 validateNumArgs("log", args, 1);
-                logCommand();
+                output = logCommand();
                 break;
             case "rm":
                 notInitialized();
-                validateNumArgs("rm", args, 2);
-                removeCommand(args[1]);
+                validateMinArgs("rm", args, 2);
+                removeCommand(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "global-log":
                 notInitialized();
                 validateNumArgs("global-log", args, 1);
-                globalLogCommand();
+                output = globalLogCommand();
                 break;
             case "find":
                 notInitialized();
-                validateNumArgs("find", args, 2);
-                findCommand(args[1]);
+                if (args.length == 3) {
+                    output = findCommand(args[1], args[2]);
+                } else {
+                    validateNumArgs("find", args, 2);
+                    output = findCommand(args[1]);
+                }
                 break;
             case "status":
                 notInitialized();
                 validateNumArgs("status", args, 1);
-                statusCommand();
+                output = statusCommand();
                 break;
             case "branch":
                 notInitialized();
@@ -209,11 +272,141 @@ public class Main {
                 validateNumArgs("reset", args, 2);
                 resetCommand(args[1]);
                 break;
+            case "merge":
+                notInitialized();
+                validateNumArgs("merge", args, 2);
+                output = mergeCommand(args[1]);
+                break;
+            case "migrate":
+                notInitialized();
+                validateNumArgs("migrate", args, 1);
+                migrateCommand();
+                break;
+            case "gc":
+                notInitialized();
+                validateNumArgs("gc", args, 1);
+                ObjectStore.repack();
+                Branch.pack();
+                break;
+            case "repack":
+                notInitialized();
+                validateNumArgs("repack", args, 1);
+                ObjectStore.repack();
+                break;
             default:
-                System.out.println("No command with that name exists.");
-                System.exit(0);
+                throw error("No command with that name exists.");
+        }
+        return output;
+    }
+
+    /** Writes the repository state held in memory back to .gitlet. */
+    private static void flush() {
+        State.flush();
+        Index.flush();
+        Journal.commit();
+    }
+
+    /** Runs the batch command ARGS, which is
+     *      batch [--flush-each] FILE
+     *  and returns the exit status for main.  FILE (or the standard input,
+     *  if FILE is "-") holds one gitlet command per line, its arguments
+     *  separated by blanks and quoted as by a shell; blank lines and lines
+     *  starting with # are skipped.  Every command is run in this JVM and
+     *  prints what it would have printed if run on its own, errors
+     *  included, and the batch carries on past a failed command.  The
+     *  repository state held in memory is written back once at the end,
+     *  or after each command with --flush-each.  The status is 0 unless a
+     *  command failed unexpectedly, in which case its stack trace is
+     *  printed and the status is 1. */
+    static int batch(String[] args) {
+        boolean flushEach = args.length == 3 && args[1].equals("--flush-each");
+        if (args.length != (flushEach ? 3 : 2)) {
+            System.out.println("Incorrect operands.");
+            return 0;
+        }
+        String source = args[args.length - 1];
+        int status = 0;
+        try (BufferedReader in = new BufferedReader(source.equals("-")
+                 ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                 : new FileReader(source, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                try {
+                    String[] command = splitCommand(line);
+                    if (command.length == 0) {
+                        continue;
+                    }
+                    lock(false);
+                    System.out.print(execute(command));
+                } catch (GitletException excp) {
+                    System.out.println(excp.getMessage());
+                } catch (RuntimeException excp) {
+                    System.out.flush();
+                    excp.printStackTrace();
+                    status = 1;
+                } finally {
+                    if (flushEach) {
+                        flush();
+                    }
+                }
+            }
+        } catch (IOException excp) {
+            System.out.flush();
+            System.err.println("gitlet batch: " + excp.getMessage());
+            status = 1;
+        } finally {
+            try {
+                flush();
+            } finally {
+                Lock.release();
+            }
+        }
+        System.out.flush();
+        return status;
+    }
+
+    /** Returns the arguments of the command on LINE, which are separated
+     *  by blanks.  Within single quotes every character stands for itself;
+     *  within double quotes and outside quotes, a backslash makes the next
+     *  character stand for itself.  A line starting with # is a comment
+     *  and has no arguments. */
+    static String[] splitCommand(String line) {
+        ArrayList<String> result = new ArrayList<>();
+        if (line.strip().startsWith("#")) {
+            return new String[0];
+        }
+        StringBuilder arg = null;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i += 1) {
+            char c = line.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                if (arg != null) {
+                    result.add(arg.toString());
+                    arg = null;
+                }
+                continue;
+            }
+            if (arg == null) {
+                arg = new StringBuilder();
+            }
+            if (c == quote) {
+                quote = 0;
+            } else if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == '\\' && quote != '\'' && i + 1 < line.length()) {
+                i += 1;
+                arg.append(line.charAt(i));
+            } else {
+                arg.append(c);
+            }
         }
-        return;
+        if (quote != 0) {
+            throw error("Unterminated quote.");
+        }
+        if (arg != null) {
+            result.add(arg.toString());
+        }
+        return result.toArray(new String[0]);
     }
 
     /**
@@ -226,15 +419,27 @@ public class Main {
      */
     public static void validateNumArgs(String cmd, String[] args, int n) {
         if (args.length != n) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw error("Incorrect operands.");
+        }
+    }
+
+    /**
+     * Checks that there are at least the expected number of arguments,
+     * throws a GitletException if there are fewer.
+     *
+     * @param cmd Name of command you are validating
+     * @param args Argument array from command line
+     * @param n Least number of expected arguments
+     */
+    public static void validateMinArgs(String cmd, String[] args, int n) {
+        if (args.length < n) {
+            throw error("Incorrect operands.");
         }
     }
 
     public static void notInitialized() {
         if (!Repository.GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw error("Not in an initialized Gitlet directory.");
         }
     }
 }
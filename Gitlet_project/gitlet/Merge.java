@@ -0,0 +1,164 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.IntConsumer;
+
+import static gitlet.Utils.*;
+
+/** A three-way merge of the files of two commits, ours and theirs, against
+ *  their split point, the base.  Each file is classified on its own:
+ *
+ *      KEEP      it is unchanged on their side, or changed the same way on
+ *                both sides: our version stands;
+ *      TAKE      it is changed only on their side: their version is
+ *                written to the working directory and staged;
+ *      REMOVE    it is deleted only on their side: it is deleted from the
+ *                working directory and staged for removal;
+ *      CONFLICT  it is changed differently on both sides: a conflict file
+ *                holding both versions is written and staged.
+ *
+ *  Both the classification and the writing of files are split among the
+ *  threads of the common ForkJoinPool (see Parallel), so merges of many
+ *  files use every core.  Conflict files are streamed together from the
+ *  two blobs rather than assembled in memory.
+ */
+class Merge {
+
+    /** What a merge does to a file. */
+    enum Action { KEEP, TAKE, REMOVE, CONFLICT }
+
+    /** Number of files below which a task is not split further. */
+    private static final int THRESHOLD = 64;
+
+    /** The lines that surround and separate the versions in a conflict. */
+    private static final byte[] OURS_MARKER =
+        "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR =
+        "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS_MARKER =
+        ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    /** The blobs of the base, ours and theirs, by file name. */
+    private final Map<String, String> base, ours, theirs;
+    /** The names of all files in any of the three, in order. */
+    private final String[] names;
+    /** The action for each file of NAMES. */
+    private final Action[] actions;
+
+    /** A merge of the files OURS and THEIRS, both maps from file names to
+     *  blobs, against BASE. */
+    Merge(Map<String, String> base, Map<String, String> ours,
+          Map<String, String> theirs) {
+        this.base = base;
+        this.ours = ours;
+        this.theirs = theirs;
+        TreeSet<String> all = new TreeSet<>(base.keySet());
+        all.addAll(ours.keySet());
+        all.addAll(theirs.keySet());
+        names = all.toArray(new String[0]);
+        actions = new Action[names.length];
+    }
+
+    /** Classifies every file. */
+    void classify() {
+        forEach(i -> actions[i] = classify(names[i]));
+    }
+
+    /** Carries out the actions other than REMOVE, writing files to the
+     *  working directory DIR and staging them in STAGEDIR. */
+    void apply(File dir, File stageDir) {
+        forEach(i -> {
+            File file = join(dir, names[i]);
+            File staged = join(stageDir, names[i]);
+            switch (actions[i]) {
+                case TAKE:
+                    ObjectStore.copyTo(ObjectStore.Kind.BLOB, theirs.get(names[i]), file);
+                    staged.getParentFile().mkdirs();
+                    Journal.prepare(staged);
+                    transferContents(file, staged);
+                    break;
+                case CONFLICT:
+                    file.getParentFile().mkdirs();
+                    writeConflict(file, ours.get(names[i]), theirs.get(names[i]));
+                    staged.getParentFile().mkdirs();
+                    Journal.prepare(staged);
+                    transferContents(file, staged);
+                    break;
+                default:
+                    break;
+            }
+        });
+    }
+
+    /** Returns the names of the files with action ACTION, in order. */
+    TreeSet<String> filesTo(Action action) {
+        TreeSet<String> result = new TreeSet<>();
+        for (int i = 0; i < names.length; i += 1) {
+            if (actions[i] == action) {
+                result.add(names[i]);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the blobs of the files taken from their side, by name. */
+    TreeMap<String, String> taken() {
+        TreeMap<String, String> result = new TreeMap<>();
+        for (String name : filesTo(Action.TAKE)) {
+            result.put(name, theirs.get(name));
+        }
+        return result;
+    }
+
+    /** Returns the action for the file NAME. */
+    private Action classify(String name) {
+        String inBase = base.get(name);
+        String inOurs = ours.get(name);
+        String inTheirs = theirs.get(name);
+        if (Objects.equals(inOurs, inTheirs) || Objects.equals(inTheirs, inBase)) {
+            return Action.KEEP;
+        } else if (Objects.equals(inOurs, inBase)) {
+            return inTheirs == null ? Action.REMOVE : Action.TAKE;
+        } else {
+            return Action.CONFLICT;
+        }
+    }
+
+    /** Writes to FILE the conflict between the blobs OURS and THEIRS,
+     *  either of which may be null for a deleted file. */
+    private static void writeConflict(File file, String ours, String theirs) {
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            out.write(OURS_MARKER);
+            transferBlob(ours, out);
+            out.write(SEPARATOR);
+            transferBlob(theirs, out);
+            out.write(THEIRS_MARKER);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Copies the contents of the blob SHA, if it is not null, to OUT. */
+    private static void transferBlob(String sha, OutputStream out)
+        throws IOException {
+        if (sha != null) {
+            try (InputStream in = ObjectStore.open(ObjectStore.Kind.BLOB, sha)) {
+                in.transferTo(out);
+            }
+        }
+    }
+
+    /** Runs OP on the index of every file, in parallel. */
+    private void forEach(IntConsumer op) {
+        Parallel.forEach(names.length, THRESHOLD, op);
+    }
+}
@@ -0,0 +1,351 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** An inverted index of commit messages, used by find to look up the
+ *  commits with a given message, or with a given word in their message,
+ *  without scanning every commit.
+ *
+ *  The index holds records of a 64-bit key and a 20-byte commit id.  Each
+ *  commit has one record keyed by the hash of its whole message, and one
+ *  for each distinct token of its message (see tokens), keyed by the hash
+ *  of the token; the low bit of the key tells the two apart.  Since keys
+ *  are hashes, every match is checked against the message in the commit
+ *  graph before it is returned.
+ *
+ *  The index file (.gitlet/message-index) is the magic "GMSG", a version
+ *  int, the number of commits indexed and the number of records, and then
+ *  the records sorted by key and id.  It is memory-mapped and
+ *  binary-searched in place.  The records of new commits are appended to
+ *  .gitlet/message-index-new, which is merged into the sorted file once it
+ *  holds MAX_PENDING records.  An index that is missing, or that covers a
+ *  different number of commits than the commit graph, is rebuilt from the
+ *  graph.
+ */
+class MessageIndex {
+
+    /** The sorted index and the records appended since it was written. */
+    static final File FILE = join(Repository.GITLET_DIR, "message-index");
+    static final File PENDING = join(Repository.GITLET_DIR, "message-index-new");
+
+    /** Magic number and version of the index file. */
+    private static final byte[] MAGIC = "GMSG".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    /** Size of the index header: magic, version and the two counts. */
+    private static final int HEADER = 16;
+
+    /** Length of an id in bytes. */
+    private static final int SHA_BYTES = UID_LENGTH / 2;
+
+    /** Size of a record: its key and its id. */
+    private static final int RECORD = 8 + SHA_BYTES;
+
+    /** Number of appended records that triggers a rewrite of the index. */
+    private static final int MAX_PENDING = 4096;
+
+    /** The mapped index, or null until it is first needed. */
+    private static MappedByteBuffer index;
+    /** The stamp (see Utils.stamp) of FILE when it was mapped. */
+    private static long indexStamp;
+
+    /** A record: a key and the id of a commit. */
+    private static class Record implements Comparable<Record> {
+        private final long key;
+        private final String id;
+
+        Record(long key, String id) {
+            this.key = key;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Record other) {
+            int cmp = Long.compare(key, other.key);
+            return cmp != 0 ? cmp : id.compareTo(other.id);
+        }
+    }
+
+    /** Records that the commit ID, with message MESSAGE, has been saved and
+     *  added to the commit graph. */
+    static void add(String id, String message) {
+        if (!FILE.exists()) {
+            rebuild();
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                 new FileOutputStream(PENDING, true)))) {
+            for (Record record : records(id, message)) {
+                out.writeLong(record.key);
+                out.write(fromHex(record.id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (PENDING.length() >= (long) MAX_PENDING * RECORD) {
+            merge();
+        }
+    }
+
+    /** Forgets the mapped index if the index file has changed since it was
+     *  mapped, as by another process. */
+    static void revalidate() {
+        if (index != null && stamp(FILE) != indexStamp) {
+            index = null;
+        }
+    }
+
+    /** Rewrites the index from the commit graph. */
+    static void rebuild() {
+        List<Record> records = new ArrayList<>();
+        int commits = CommitGraph.size();
+        for (int p = 0; p < commits; p += 1) {
+            records.addAll(records(CommitGraph.idAt(p), CommitGraph.messageAt(p)));
+        }
+        Collections.sort(records);
+        write(commits, records.size(), records, null);
+    }
+
+    /** Returns the sorted ids of the commits whose message is MESSAGE. */
+    static TreeSet<String> withMessage(String message) {
+        TreeSet<String> result = new TreeSet<>();
+        for (String id : lookup(messageKey(message))) {
+            if (CommitGraph.messageAt(CommitGraph.find(id)).equals(message)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the sorted ids of the commits whose message has the token
+     *  TOKEN, compared without regard to case. */
+    static TreeSet<String> withToken(String token) {
+        TreeSet<String> result = new TreeSet<>();
+        String word = token.toLowerCase(Locale.ROOT);
+        for (String id : lookup(tokenKey(word))) {
+            if (tokens(CommitGraph.messageAt(CommitGraph.find(id))).contains(word)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the distinct tokens of MESSAGE, in order: its maximal runs
+     *  of letters and digits, in lower case. */
+    static List<String> tokens(String message) {
+        LinkedHashSet<String> result = new LinkedHashSet<>();
+        for (String token : message.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                result.add(token);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** Returns the records of the commit ID with message MESSAGE. */
+    private static List<Record> records(String id, String message) {
+        List<Record> result = new ArrayList<>();
+        result.add(new Record(messageKey(message), id));
+        for (String token : tokens(message)) {
+            result.add(new Record(tokenKey(token), id));
+        }
+        return result;
+    }
+
+    /** Returns the key of the message MESSAGE. */
+    private static long messageKey(String message) {
+        return hash(message) << 1;
+    }
+
+    /** Returns the key of the token TOKEN. */
+    private static long tokenKey(String token) {
+        return hash(token) << 1 | 1;
+    }
+
+    /** Returns the 64-bit FNV-1a hash of the characters of STR. */
+    private static long hash(String str) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < str.length(); i += 1) {
+            h ^= str.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** Returns the ids of the records with KEY, which may include ids whose
+     *  message merely shares its hash. */
+    private static List<String> lookup(long key) {
+        if (!FILE.exists() || commits() + pendingCommits() != CommitGraph.size()) {
+            rebuild();
+        }
+        List<String> result = new ArrayList<>();
+        int lo = 0;
+        int hi = count();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keyAt(mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < count() && keyAt(i) == key; i += 1) {
+            result.add(idAt(i));
+        }
+        for (Record record : pending()) {
+            if (record.key == key) {
+                result.add(record.id);
+            }
+        }
+        return result;
+    }
+
+    /** Folds the appended records into the sorted index. */
+    private static void merge() {
+        List<Record> added = pending();
+        Collections.sort(added);
+        write(commits() + pendingCommits(), count() + added.size(), added, index());
+    }
+
+    /** Writes an index of COMMITS commits holding N records: those of
+     *  RECORDS, which are sorted, merged with those of the mapped index
+     *  OLD, if it is not null.  Replaces the old index and any appended
+     *  records. */
+    private static void write(int commits, int n, List<Record> records,
+                              MappedByteBuffer old) {
+        File tmp = tempFile(Repository.GITLET_DIR, "tmp-message-index");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                 new FileOutputStream(tmp), BUFFER_SIZE))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(commits);
+            out.writeInt(n);
+            int i = 0;
+            int oldCount = old == null ? 0 : n - records.size();
+            for (Record record : records) {
+                while (i < oldCount && (keyAt(i) < record.key
+                       || (keyAt(i) == record.key && idAt(i).compareTo(record.id) < 0))) {
+                    copyRecord(i, out);
+                    i += 1;
+                }
+                out.writeLong(record.key);
+                out.write(fromHex(record.id));
+            }
+            for (; i < oldCount; i += 1) {
+                copyRecord(i, out);
+            }
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        index = null;
+        if (!tmp.renameTo(FILE)) {
+            throw new IllegalArgumentException("could not write " + FILE);
+        }
+        PENDING.delete();
+    }
+
+    /** Copies record I of the mapped index to OUT. */
+    private static void copyRecord(int i, DataOutputStream out) throws IOException {
+        byte[] record = new byte[RECORD];
+        index().get(HEADER + i * RECORD, record);
+        out.write(record);
+    }
+
+    /** Returns the records appended since the index was last written. */
+    private static List<Record> pending() {
+        List<Record> result = new ArrayList<>();
+        if (!PENDING.exists()) {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(
+                 new ByteArrayInputStream(readContents(PENDING)))) {
+            while (true) {
+                long key;
+                byte[] id = new byte[SHA_BYTES];
+                try {
+                    key = in.readLong();
+                    in.readFully(id);
+                } catch (EOFException excp) {
+                    break;
+                }
+                result.add(new Record(key, toHex(id)));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result;
+    }
+
+    /** Returns the number of commits whose records have been appended. */
+    private static int pendingCommits() {
+        int result = 0;
+        for (Record record : pending()) {
+            if ((record.key & 1) == 0) {
+                result += 1;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the mapped index. */
+    private static MappedByteBuffer index() {
+        if (index == null) {
+            indexStamp = stamp(FILE);
+            try (FileChannel in = FileChannel.open(FILE.toPath(),
+                                                   StandardOpenOption.READ)) {
+                index = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            byte[] magic = new byte[4];
+            index.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC) || index.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("bad message index " + FILE);
+            }
+        }
+        return index;
+    }
+
+    /** Returns the number of commits in the sorted index. */
+    private static int commits() {
+        return index().getInt(8);
+    }
+
+    /** Returns the number of records in the sorted index. */
+    private static int count() {
+        return index().getInt(12);
+    }
+
+    /** Returns the key of record I of the sorted index. */
+    private static long keyAt(int i) {
+        return index().getLong(HEADER + i * RECORD);
+    }
+
+    /** Returns the id of record I of the sorted index. */
+    private static String idAt(int i) {
+        byte[] sha = new byte[SHA_BYTES];
+        index().get(HEADER + i * RECORD + 8, sha);
+        return toHex(sha);
+    }
+}
@@ -0,0 +1,856 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** The object database of a repository.  Objects are commits, trees (see
+ *  Tree) and blobs, named by the SHA-1 of their contents.  Each object is
+ *  either loose, in a file of its own under .gitlet/commits, .gitlet/trees
+ *  or .gitlet/blobs, or packed, in one of the packs under .gitlet/packs
+ *  (see Pack).  Lookups try loose objects first and then the packs, so
+ *  callers need not know which.
+ *
+ *  The gc command consolidates all loose objects and existing packs into
+ *  a single new pack.  While doing so it stores each blob that is a new
+ *  version of a file as a delta against the previous version of that file
+ *  (see Delta), as found by following the files each commit changes.
+ *  Delta chains are kept to at most MAX_DELTA_DEPTH links, and recently
+ *  reconstructed objects are cached so that walking a chain, or reading
+ *  many versions of one file, does not redo the same work.  Objects stored
+ *  whole in a pack are compressed with the configured Codec, as loose ones
+ *  are; a compressed loose object is copied into the pack as it is.
+ *
+ *  Loose objects are compressed with the configured Codec.  Every loose
+ *  object starts with LOOSE_MAGIC, a codec byte and the varint size of its
+ *  uncompressed contents, RAW ones included, so that its contents never
+ *  decide how it is read.  Repositories made before loose objects had
+ *  headers hold raw objects with no header at all; they are told apart by
+ *  the absence of HEADERS, not by their objects' contents, and keep writing
+ *  objects without headers until packing them all (as gc, repack and
+ *  migrate do) leaves no loose object behind and HEADERS can be created.
+ */
+class ObjectStore {
+
+    /** The kinds of object, each with its own loose directory. */
+    enum Kind {
+        COMMIT, BLOB, TREE;
+
+        /** Returns the directory holding loose objects of this kind. */
+        File dir() {
+            switch (this) {
+                case COMMIT:
+                    return Repository.COMMIT_DIR;
+                case TREE:
+                    return Repository.TREE_DIR;
+                default:
+                    return Repository.BLOB_DIR;
+            }
+        }
+    }
+
+    /** The longest chain of deltas a packed object may sit at the end of. */
+    static final int MAX_DELTA_DEPTH = 10;
+
+    /** Blobs larger than this are never stored as or used as deltas, since
+     *  deltas are computed in memory. */
+    static final long MAX_DELTA_SIZE = 16 << 20;
+
+    /** The bytes that start a loose object. */
+    private static final byte[] LOOSE_MAGIC = {0, 'g', 'l', 'z'};
+
+    /** The file whose presence records that the loose objects of the
+     *  repository have headers. */
+    static final File HEADERS = join(Repository.GITLET_DIR, "loose-headers");
+
+    /** Whether HEADERS exists, or null if not yet checked. */
+    private static volatile Boolean headers;
+
+    /** Total size of the reconstructed objects kept in the cache. */
+    private static final long CACHE_LIMIT = 32 << 20;
+
+    /** The packs of the current repository, or null if not yet loaded. */
+    private static List<Pack> packs;
+
+    /** The stamp (see Utils.stamp) of PACK_DIR when PACKS was loaded. */
+    private static long packsStamp;
+
+    /** Recently reconstructed delta objects, least recently used first. */
+    private static final LinkedHashMap<String, byte[]> RECONSTRUCTED =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Total size of the objects in RECONSTRUCTED.  Both are guarded by
+     *  RECONSTRUCTED's lock, as objects may be read from several threads. */
+    private static long cachedBytes;
+
+    /** Returns the file holding the loose object of kind KIND named SHA,
+     *  which need not exist.  Loose objects are fanned out into
+     *  subdirectories named by the first two hexadecimal digits of their
+     *  SHA-1, like git's, so that no one directory grows too large.
+     *  Repositories that have not been migrated may still have objects
+     *  directly in the kind's directory, which are found as well. */
+    static File loose(Kind kind, String sha) {
+        File sharded = join(kind.dir(), sha.substring(0, 2), sha.substring(2));
+        if (!sharded.exists()) {
+            File flat = join(kind.dir(), sha);
+            if (flat.isFile()) {
+                return flat;
+            }
+        }
+        return sharded;
+    }
+
+    /** Returns the sorted names of the loose objects of kind KIND that
+     *  start with the hexadecimal numeral PREFIX, which may be empty.  Only
+     *  the one subdirectory that can hold them is listed when PREFIX has at
+     *  least two digits. */
+    private static List<String> looseNames(Kind kind, String prefix) {
+        TreeSet<String> result = new TreeSet<>();
+        String[] names = kind.dir().list();
+        if (names == null) {
+            return new ArrayList<>();
+        }
+        for (String name : names) {
+            if (name.length() == UID_LENGTH && name.startsWith(prefix)) {
+                result.add(name);
+            } else if (name.length() == 2
+                       && (prefix.length() >= 2 ? prefix.startsWith(name)
+                           : name.startsWith(prefix))) {
+                for (String rest : plainFilenamesIn(join(kind.dir(), name))) {
+                    if ((name + rest).startsWith(prefix)) {
+                        result.add(name + rest);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** Moves any loose objects that still sit directly in their kind's
+     *  directory into their fan-out subdirectories. */
+    static void shardLooseObjects() {
+        for (Kind kind : Kind.values()) {
+            if (!kind.dir().isDirectory()) {
+                continue;
+            }
+            for (String name : plainFilenamesIn(kind.dir())) {
+                if (name.length() != UID_LENGTH) {
+                    continue;
+                }
+                File sharded = join(kind.dir(), name.substring(0, 2),
+                                    name.substring(2));
+                sharded.getParentFile().mkdirs();
+                if (sharded.exists()) {
+                    join(kind.dir(), name).delete();
+                } else if (!join(kind.dir(), name).renameTo(sharded)) {
+                    throw new IllegalArgumentException("could not move " + name);
+                }
+            }
+        }
+    }
+
+    /** Returns true if there is an object of kind KIND named SHA. */
+    static boolean contains(Kind kind, String sha) {
+        return loose(kind, sha).isFile() || findPacked(kind, sha) != null;
+    }
+
+    /** Returns a stream over the contents of the object of kind KIND named
+     *  SHA.  Throws IllegalArgumentException if there is none. */
+    static InputStream open(Kind kind, String sha) {
+        File file = loose(kind, sha);
+        if (file.isFile()) {
+            return openLoose(file);
+        }
+        Located packed = findPacked(kind, sha);
+        if (packed == null) {
+            throw new IllegalArgumentException("no such object " + sha);
+        }
+        if (packed.pack.isDeltaAt(packed.index)) {
+            return new ByteArrayInputStream(readPacked(packed, kind));
+        }
+        return new BufferedInputStream(packed.pack.open(packed.index));
+    }
+
+    /** Returns the contents of the object of kind KIND named SHA. */
+    static byte[] readBytes(Kind kind, String sha) {
+        File file = loose(kind, sha);
+        if (file.isFile()) {
+            try (InputStream in = openLoose(file)) {
+                return in.readAllBytes();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        Located packed = findPacked(kind, sha);
+        if (packed == null) {
+            throw new IllegalArgumentException("no such object " + sha);
+        }
+        return readPacked(packed, kind);
+    }
+
+    /** Returns the contents of the packed object of kind KIND at PACKED,
+     *  applying its delta to its base if it is stored as one. */
+    private static byte[] readPacked(Located packed, Kind kind) {
+        Pack pack = packed.pack;
+        int i = packed.index;
+        try (InputStream in = pack.open(i)) {
+            if (!pack.isDeltaAt(i)) {
+                return in.readAllBytes();
+            }
+            String sha = pack.idAt(i);
+            byte[] result;
+            synchronized (RECONSTRUCTED) {
+                result = RECONSTRUCTED.get(sha);
+            }
+            if (result == null) {
+                byte[] base = new byte[Pack.SHA_BYTES];
+                new DataInputStream(in).readFully(base);
+                result = Delta.apply(readBytes(kind, toHex(base)),
+                                     in.readAllBytes());
+                cache(sha, result);
+            }
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Adds the reconstructed object CONTENTS named SHA to the cache,
+     *  evicting the least recently used objects to stay within
+     *  CACHE_LIMIT. */
+    private static void cache(String sha, byte[] contents) {
+        if (contents.length > CACHE_LIMIT) {
+            return;
+        }
+        synchronized (RECONSTRUCTED) {
+            RECONSTRUCTED.put(sha, contents);
+            cachedBytes += contents.length;
+            Iterator<byte[]> eldest = RECONSTRUCTED.values().iterator();
+            while (cachedBytes > CACHE_LIMIT) {
+                cachedBytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /** Copies the object of kind KIND named SHA to DEST, creating or
+     *  overwriting it (and creating its directory) as needed, without
+     *  passing it through the heap. */
+    static void copyTo(Kind kind, String sha, File dest) {
+        dest.getParentFile().mkdirs();
+        File file = loose(kind, sha);
+        if (file.isFile()) {
+            LooseHeader header = looseHeader(file);
+            if (header.codec == Codec.RAW) {
+                try (FileChannel out = FileChannel.open(dest.toPath(),
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                    transferRaw(file, header.size, out);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            } else {
+                try (InputStream in = openLoose(file);
+                     OutputStream out = Files.newOutputStream(dest.toPath())) {
+                    in.transferTo(out);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            }
+            return;
+        }
+        Located packed = findPacked(kind, sha);
+        if (packed == null) {
+            throw new IllegalArgumentException("no such object " + sha);
+        }
+        if (packed.pack.isDeltaAt(packed.index)) {
+            writeContents(dest, readPacked(packed, kind));
+            return;
+        }
+        try (FileChannel out = FileChannel.open(dest.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            packed.pack.copyTo(packed.index, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Stores CONTENTS as a loose object of kind KIND and returns its
+     *  SHA-1. */
+    static String write(Kind kind, byte[] contents) {
+        String sha = sha1(contents);
+        if (!contains(kind, sha)) {
+            writeLoose(loose(kind, sha), new ByteArrayInputStream(contents),
+                       contents.length);
+        }
+        return sha;
+    }
+
+    /** Moves the file STAGED, whose contents have SHA-1 SHA, into the store
+     *  as a loose object of kind KIND.  In a repository whose loose objects
+     *  have no headers STAGED is simply renamed into place; otherwise it is
+     *  copied behind a header, compressed as configured, with a streaming
+     *  read. */
+    static void moveIn(Kind kind, String sha, File staged) {
+        File file = loose(kind, sha);
+        if (contains(kind, sha)) {
+            staged.delete();
+            return;
+        }
+        file.getParentFile().mkdirs();
+        if (!headers() && staged.renameTo(file)) {
+            Journal.sync(file);
+            return;
+        }
+        try (InputStream in = new FileInputStream(staged)) {
+            writeLoose(file, in, staged.length());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        staged.delete();
+    }
+
+    /** Writes the SIZE bytes read from IN to the loose object FILE with the
+     *  configured codec, or raw and without a header if the repository's
+     *  loose objects have none.  The object is written to a temporary file
+     *  that is then renamed, so FILE never holds a partial object. */
+    private static void writeLoose(File file, InputStream in, long size) {
+        boolean header = headers();
+        Codec codec = header ? Codec.configured() : Codec.RAW;
+        File tmp = join(Repository.GITLET_DIR,
+                        "tmp-" + file.getParentFile().getName() + file.getName());
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(
+                 Files.newOutputStream(tmp.toPath()), BUFFER_SIZE)) {
+            if (header) {
+                DataOutputStream data = new DataOutputStream(out);
+                data.write(LOOSE_MAGIC);
+                data.writeByte(codec.id());
+                writeVarint(data, size);
+            }
+            try (OutputStream compressed = codec.compress(out)) {
+                in.transferTo(compressed);
+            }
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IllegalArgumentException("could not write " + file);
+        }
+        Journal.sync(file);
+    }
+
+    /** Returns a stream over the uncompressed contents of the loose object
+     *  FILE. */
+    private static InputStream openLoose(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), BUFFER_SIZE));
+            return readLooseHeader(in, file).codec.decompress(in);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the header of the loose object FILE. */
+    private static LooseHeader looseHeader(File file) {
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(new FileInputStream(file), 16))) {
+            return readLooseHeader(in, file);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Reads the header of the loose object FILE from IN, leaving IN at the
+     *  start of the object's contents.  An object of a repository whose
+     *  loose objects have no headers is raw, and IN is left where it is. */
+    private static LooseHeader readLooseHeader(DataInputStream in, File file)
+        throws IOException {
+        if (!headers()) {
+            return new LooseHeader(Codec.RAW, file.length());
+        }
+        byte[] magic = new byte[LOOSE_MAGIC.length];
+        if (in.readNBytes(magic, 0, magic.length) != magic.length
+            || !Arrays.equals(magic, LOOSE_MAGIC)) {
+            throw new IllegalArgumentException("corrupt object " + file.getName());
+        }
+        Codec codec = Codec.forId(in.readUnsignedByte());
+        return new LooseHeader(codec, readVarint(in));
+    }
+
+    /** Copies the SIZE bytes at the end of the raw loose object FILE, which
+     *  are its contents, to OUT. */
+    private static void transferRaw(File file, long size, FileChannel out)
+        throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(),
+                                  StandardOpenOption.READ)) {
+            long start = in.size() - size;
+            long done = 0;
+            while (done < size) {
+                done += in.transferTo(start + done, size - done, out);
+            }
+        }
+    }
+
+    /** Returns true if the loose objects of the repository have headers. */
+    static boolean headers() {
+        if (headers == null) {
+            headers = HEADERS.exists();
+        }
+        return headers;
+    }
+
+    /** Records that the loose objects of the repository have headers,
+     *  which must only be done when there are no loose objects without
+     *  one. */
+    static void useHeaders() {
+        if (!HEADERS.exists()) {
+            writeContents(HEADERS, "1\n");
+            Journal.sync(HEADERS);
+        }
+        headers = true;
+    }
+
+    /** Returns the sorted names of all objects of kind KIND. */
+    static List<String> list(Kind kind) {
+        TreeSet<String> result = new TreeSet<>(looseNames(kind, ""));
+        for (Pack pack : packs()) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                if (pack.kindAt(i) == kind.ordinal()) {
+                    result.add(pack.idAt(i));
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** Returns the sorted names of all objects of kind KIND that start with
+     *  the hexadecimal numeral PREFIX. */
+    static List<String> listPrefix(Kind kind, String prefix) {
+        TreeSet<String> result = new TreeSet<>(looseNames(kind, prefix));
+        for (Pack pack : packs()) {
+            int[] range = pack.findPrefix(prefix);
+            for (int i = range[0]; i < range[1]; i += 1) {
+                if (pack.kindAt(i) == kind.ordinal()) {
+                    result.add(pack.idAt(i));
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** Consolidates all loose objects and packs into a single new pack,
+     *  then deletes the loose objects and the old packs. */
+    static void repack() {
+        repack(Collections.emptySet());
+    }
+
+    /** As for repack(), but leaves the objects named in DROPPED out of the
+     *  new pack. */
+    static void repack(Set<String> dropped) {
+        // maps each object to the kind and source it will be copied from;
+        // loose objects win over packed copies of the same object
+        TreeMap<String, Source> entries = new TreeMap<>();
+        List<Pack> oldPacks = packs();
+        boolean changed = oldPacks.size() > 1
+            || (oldPacks.size() == 1 && oldPacks.get(0).version() < Pack.VERSION);
+        for (Pack pack : oldPacks) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                String sha = pack.idAt(i);
+                if (dropped.contains(sha)) {
+                    changed = true;
+                } else {
+                    entries.put(sha, new Source(pack.kindAt(i), pack, i, null));
+                }
+            }
+        }
+        for (Kind kind : Kind.values()) {
+            for (String sha : looseNames(kind, "")) {
+                if (!dropped.contains(sha)) {
+                    entries.put(sha, new Source(kind.ordinal(), null, -1, loose(kind, sha)));
+                }
+                changed = true;
+            }
+        }
+        if (!changed) {
+            useHeaders();
+            return;
+        }
+
+        Repository.PACK_DIR.mkdir();
+        String name = "pack-" + sha1(String.join("", entries.keySet()));
+        File packFile = join(Repository.PACK_DIR, name + ".pack");
+        File idxFile = join(Repository.PACK_DIR, name + ".idx");
+        File tmpPack = join(Repository.PACK_DIR, name + ".pack.tmp");
+        File tmpIdx = join(Repository.PACK_DIR, name + ".idx.tmp");
+
+        HashMap<String, String> bases = chooseBases(entries);
+        int n = entries.size();
+        String[] sha1s = entries.keySet().toArray(new String[n]);
+        byte[] types = new byte[n];
+        long[] offsets = new long[n];
+        long[] lengths = new long[n];
+        try (FileChannel out = FileChannel.open(tmpPack.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream header =
+                new DataOutputStream(Channels.newOutputStream(out));
+            header.write(Pack.PACK_MAGIC);
+            header.writeInt(Pack.VERSION);
+            header.writeInt(n);
+            for (int k = 0; k < n; k += 1) {
+                Source entry = entries.get(sha1s[k]);
+                types[k] = (byte) entry.type;
+                byte[] contents = null;
+                String base = bases.get(sha1s[k]);
+                if (base != null) {
+                    contents = readBytes(Kind.BLOB, sha1s[k]);
+                    byte[] delta = Delta.create(readBytes(Kind.BLOB, base), contents);
+                    if (delta.length + Pack.SHA_BYTES < contents.length * 3 / 4) {
+                        types[k] |= Pack.DELTA;
+                        contents = new byte[Pack.SHA_BYTES + delta.length];
+                        System.arraycopy(fromHex(base), 0, contents, 0, Pack.SHA_BYTES);
+                        System.arraycopy(delta, 0, contents, Pack.SHA_BYTES, delta.length);
+                    }
+                } else if (entry.pack != null && entry.pack.isDeltaAt(entry.index)) {
+                    contents = readPacked(new Located(entry.pack, entry.index),
+                                          Kind.values()[entry.type]);
+                }
+
+                if (contents != null) {
+                    if ((types[k] & Pack.DELTA) == 0) {
+                        contents = compressedEntry(contents);
+                    }
+                    lengths[k] = contents.length;
+                    writeEntryHeader(header, types[k], lengths[k]);
+                    offsets[k] = out.position();
+                    header.write(contents);
+                } else if (entry.pack != null && entry.pack.version() == Pack.VERSION) {
+                    lengths[k] = entry.pack.lengthAt(entry.index);
+                    writeEntryHeader(header, types[k], lengths[k]);
+                    offsets[k] = out.position();
+                    entry.pack.transferTo(entry.index, out);
+                } else if (entry.pack != null) {
+                    lengths[k] = writeWhole(header, out, types[k],
+                                            entry.pack.lengthAt(entry.index),
+                                            entry.pack.open(entry.index));
+                    offsets[k] = out.position() - lengths[k];
+                } else if (headers()) {
+                    // a loose object after its magic is a whole pack entry
+                    File file = entry.file;
+                    long skip = LOOSE_MAGIC.length;
+                    lengths[k] = file.length() - skip;
+                    writeEntryHeader(header, types[k], lengths[k]);
+                    offsets[k] = out.position();
+                    try (FileChannel in = FileChannel.open(file.toPath(),
+                                              StandardOpenOption.READ)) {
+                        long done = 0;
+                        while (done < lengths[k]) {
+                            done += in.transferTo(skip + done, lengths[k] - done, out);
+                        }
+                    }
+                } else {
+                    File file = entry.file;
+                    lengths[k] = writeWhole(header, out, types[k], file.length(),
+                                            new FileInputStream(file));
+                    offsets[k] = out.position() - lengths[k];
+                }
+            }
+            out.force(true);
+            Pack.writeIndex(tmpIdx, sha1s, types, offsets, lengths);
+        } catch (IOException excp) {
+            tmpPack.delete();
+            tmpIdx.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        // the index is moved into place last, since its presence is what
+        // makes the pack visible
+        if (!tmpPack.renameTo(packFile) || !tmpIdx.renameTo(idxFile)) {
+            throw new IllegalArgumentException("could not install " + name);
+        }
+        for (Pack pack : oldPacks) {
+            pack.close();
+            if (!pack.packFile().equals(packFile)) {
+                String old = pack.packFile().getName();
+                join(Repository.PACK_DIR,
+                     old.substring(0, old.length() - 5) + ".idx").delete();
+                pack.packFile().delete();
+            }
+        }
+        for (Kind kind : Kind.values()) {
+            for (String sha : looseNames(kind, "")) {
+                loose(kind, sha).delete();
+            }
+            File[] shards = kind.dir().listFiles();
+            for (File shard : shards == null ? new File[0] : shards) {
+                shard.delete();
+            }
+        }
+        packs = null;
+        RECONSTRUCTED.clear();
+        cachedBytes = 0;
+        // no loose object is left without a header
+        useHeaders();
+    }
+
+    /** Returns the delta bases chosen for the blobs among ENTRIES, mapping
+     *  each blob that is to be stored as a delta to its base.
+     *
+     *  Commits are visited oldest first, and each blob not seen before is
+     *  paired with the blob last seen under the same file name, which for
+     *  a linear history is the one the file had in the parent commit.
+     *  Since a base is always seen before the blobs based on it, the bases
+     *  can never form a cycle.  A blob is not given a base if that would
+     *  make its chain longer than MAX_DELTA_DEPTH.
+     *
+     *  Only the files a commit changes from its parent are looked at, and
+     *  besides the result only the latest blob of each file name is kept,
+     *  so the memory used grows with the number of blobs and file names,
+     *  not with the number of commits times the files of each. */
+    private static HashMap<String, String> chooseBases(TreeMap<String, Source> entries) {
+        HashMap<String, Long> times = new HashMap<>();
+        for (Map.Entry<String, Source> entry : entries.entrySet()) {
+            if (entry.getValue().type == Kind.COMMIT.ordinal()) {
+                times.put(entry.getKey(),
+                          Commit.read(entry.getKey(), true).getCommitTime().getTime());
+            }
+        }
+        List<String> ordered = new ArrayList<>(times.keySet());
+        ordered.sort(Comparator.comparing((String id) -> times.get(id))
+                     .thenComparing(id -> id));
+
+        HashMap<String, String> bases = new HashMap<>();
+        HashMap<String, Integer> depths = new HashMap<>();
+        HashSet<String> seen = new HashSet<>();
+        HashMap<String, String> latest = new HashMap<>();
+        for (String id : ordered) {
+            Commit commit = Commit.read(id);
+            String parentId = commit.getParentSHA();
+            Commit parent = times.containsKey(parentId) ? Commit.read(parentId) : null;
+            for (Map.Entry<String, String> blob : changes(parent, commit).entrySet()) {
+                String sha = blob.getValue();
+                if (sha == null) {
+                    continue;
+                }
+                String base = latest.put(blob.getKey(), sha);
+                if (!seen.add(sha) || base == null
+                    || !deltaCandidate(entries.get(sha))
+                    || !deltaCandidate(entries.get(base))) {
+                    continue;
+                }
+                int depth = depths.getOrDefault(base, 0) + 1;
+                if (depth <= MAX_DELTA_DEPTH) {
+                    bases.put(sha, base);
+                    depths.put(sha, depth);
+                }
+            }
+        }
+        return bases;
+    }
+
+    /** Returns the files that differ between PARENT, which may be null, and
+     *  COMMIT, mapping each file name to its blob in COMMIT, or to null if
+     *  COMMIT does not have it.  Commits stored with trees are compared
+     *  without reading the subtrees they share. */
+    private static Map<String, String> changes(Commit parent, Commit commit) {
+        if (commit.storedTree() != null
+            && (parent == null || parent.storedTree() != null)) {
+            return Tree.diff(parent == null ? null : parent.storedTree(),
+                             commit.storedTree());
+        }
+        Map<String, String> before = parent == null
+            ? Collections.emptyMap() : parent.getBlobs();
+        HashMap<String, String> result = new HashMap<>();
+        for (Map.Entry<String, String> blob : commit.getBlobs().entrySet()) {
+            if (!blob.getValue().equals(before.get(blob.getKey()))) {
+                result.put(blob.getKey(), blob.getValue());
+            }
+        }
+        return result;
+    }
+
+    /** Returns true if the object ENTRY may be stored as or used as a
+     *  delta. */
+    private static boolean deltaCandidate(Source entry) {
+        if (entry == null || entry.type != Kind.BLOB.ordinal()) {
+            return false;
+        }
+        if (entry.file != null) {
+            return looseHeader(entry.file).size <= MAX_DELTA_SIZE;
+        }
+        return entry.pack.isDeltaAt(entry.index)
+            || entry.pack.sizeAt(entry.index) <= MAX_DELTA_SIZE;
+    }
+
+    /** Returns the pack entry of the whole object CONTENTS: a codec byte,
+     *  the varint size of CONTENTS and CONTENTS compressed with the
+     *  configured codec. */
+    private static byte[] compressedEntry(byte[] contents) throws IOException {
+        Codec codec = Codec.configured();
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        DataOutputStream prefix = new DataOutputStream(result);
+        prefix.writeByte(codec.id());
+        writeVarint(prefix, contents.length);
+        try (OutputStream compressed = codec.compress(result)) {
+            compressed.write(contents);
+        }
+        return result.toByteArray();
+    }
+
+    /** Writes the SIZE bytes read from IN, and then closed, to OUT, whose
+     *  stream is HEADER, as a pack entry of type TYPE for a whole object,
+     *  and returns the length of the entry.  The object is compressed in
+     *  memory, so one larger than MAX_DELTA_SIZE is stored raw instead. */
+    private static long writeWhole(DataOutputStream header, FileChannel out,
+                                   int type, long size, InputStream in)
+        throws IOException {
+        try (in) {
+            if (size <= MAX_DELTA_SIZE) {
+                byte[] entry = compressedEntry(in.readAllBytes());
+                writeEntryHeader(header, type, entry.length);
+                header.write(entry);
+                header.flush();
+                return entry.length;
+            }
+            ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(prefix);
+            data.writeByte(Codec.RAW.id());
+            writeVarint(data, size);
+            writeEntryHeader(header, type, prefix.size() + size);
+            header.write(prefix.toByteArray());
+            in.transferTo(header);
+            header.flush();
+            return prefix.size() + size;
+        }
+    }
+
+    /** Writes the header of a pack entry of type TYPE and LENGTH bytes to
+     *  OUT. */
+    private static void writeEntryHeader(DataOutputStream out, int type,
+                                         long length) throws IOException {
+        out.writeByte(type);
+        writeVarint(out, length);
+        out.flush();
+    }
+
+    /** A packed object: the pack holding it and its position there. */
+    private static class Located {
+        private final Pack pack;
+        private final int index;
+
+        Located(Pack pack, int index) {
+            this.pack = pack;
+            this.index = index;
+        }
+    }
+
+    /** The header of a loose object: the codec its contents are stored
+     *  with and their uncompressed size. */
+    private static class LooseHeader {
+        private final Codec codec;
+        private final long size;
+
+        LooseHeader(Codec codec, long size) {
+            this.codec = codec;
+            this.size = size;
+        }
+    }
+
+    /** Where repack copies an object from: either position INDEX of PACK,
+     *  or the loose object FILE. */
+    private static class Source {
+        private final int type;
+        private final Pack pack;
+        private final int index;
+        private final File file;
+
+        Source(int type, Pack pack, int index, File file) {
+            this.type = type;
+            this.pack = pack;
+            this.index = index;
+            this.file = file;
+        }
+    }
+
+    /** Returns where the packed object of kind KIND named SHA is, or null
+     *  if it is not packed. */
+    private static Located findPacked(Kind kind, String sha) {
+        if (sha == null || sha.length() != UID_LENGTH) {
+            return null;
+        }
+        for (Pack pack : packs()) {
+            int i = pack.find(sha);
+            if (i >= 0 && pack.kindAt(i) == kind.ordinal()) {
+                return new Located(pack, i);
+            }
+        }
+        return null;
+    }
+
+    /** Forgets the loaded packs if packs have been added or removed since
+     *  they were loaded, as by another process, and whether loose objects
+     *  have headers.  Reconstructed objects stay cached, since an object's
+     *  contents never change. */
+    static synchronized void revalidate() {
+        headers = null;
+        if (packs != null && stamp(Repository.PACK_DIR) != packsStamp) {
+            for (Pack pack : packs) {
+                pack.close();
+            }
+            packs = null;
+        }
+    }
+
+    /** Returns the packs of the current repository, loading their indices
+     *  the first time they are needed. */
+    private static synchronized List<Pack> packs() {
+        if (packs == null) {
+            packsStamp = stamp(Repository.PACK_DIR);
+            packs = new ArrayList<>();
+            List<String> names = plainFilenamesIn(Repository.PACK_DIR);
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(".idx")) {
+                        packs.add(new Pack(join(Repository.PACK_DIR, name)));
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+}
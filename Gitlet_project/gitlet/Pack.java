@@ -0,0 +1,370 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/** A pack: a single append-only file holding many objects, together with
+ *  a sorted index of their SHA-1s.
+ *
+ *  The pack file (pack-ID.pack) is the magic "GPAK", a version int and an
+ *  object count, followed by each object as a type byte, a varint length
+ *  and its raw contents.  Since version 2, a type byte with the DELTA bit
+ *  set marks an object stored as the 20-byte SHA-1 of a base object of the
+ *  same kind followed by a Delta against that base.  Since version 3, an
+ *  object stored whole is stored as a codec byte (see Codec), the varint
+ *  size of the object and the object compressed with that codec, just as
+ *  a loose object is after its magic; deltas, which are small already,
+ *  are not compressed.
+ *
+ *  The index file (pack-ID.idx) is the magic "GIDX", a version int and an
+ *  object count, a 256-entry fan-out table whose entry B is the number of
+ *  objects whose SHA-1 starts with a byte <= B, and then four columns in
+ *  SHA-1 order: the 20-byte SHA-1s, the type bytes, the 8-byte offsets of
+ *  the objects' contents in the pack and their 8-byte lengths.  The index
+ *  is memory-mapped and searched in place.
+ */
+class Pack {
+
+    /** Magic numbers and version of the pack and index files. */
+    static final byte[] PACK_MAGIC = "GPAK".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] IDX_MAGIC = "GIDX".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 3;
+
+    /** Bit of the type byte marking an object stored as a delta. */
+    static final int DELTA = 0x80;
+
+    /** Length of a SHA-1 in bytes. */
+    static final int SHA_BYTES = Utils.UID_LENGTH / 2;
+
+    /** Size of the index header: magic, version, count and fan-out. */
+    private static final int IDX_HEADER = 12 + 256 * 4;
+
+    /** The pack file holding the objects. */
+    private final File packFile;
+    /** The mapped index. */
+    private final MappedByteBuffer idx;
+    /** Number of objects in the pack. */
+    private final int count;
+    /** Open channel on the pack file, or null until it is first needed. */
+    private FileChannel channel;
+
+    /** The pack whose index is IDXFILE. */
+    Pack(File idxFile) {
+        String name = idxFile.getName();
+        packFile = new File(idxFile.getParentFile(),
+                            name.substring(0, name.length() - 4) + ".pack");
+        try (FileChannel in = FileChannel.open(idxFile.toPath(),
+                                               StandardOpenOption.READ)) {
+            idx = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        byte[] magic = new byte[4];
+        idx.get(0, magic);
+        if (!Arrays.equals(magic, IDX_MAGIC) || idx.getInt(4) < 1
+            || idx.getInt(4) > VERSION) {
+            throw new IllegalArgumentException("bad pack index " + idxFile);
+        }
+        count = idx.getInt(8);
+    }
+
+    /** Returns the format version of this pack. */
+    int version() {
+        return idx.getInt(4);
+    }
+
+    /** Returns the number of objects in this pack. */
+    int size() {
+        return count;
+    }
+
+    /** Returns the pack file of this pack. */
+    File packFile() {
+        return packFile;
+    }
+
+    /** Returns the position in this pack of the object whose SHA-1 is the
+     *  hexadecimal numeral SHA, or -1 if it is not in this pack. */
+    int find(String sha) {
+        byte[] key = Utils.fromHex(sha);
+        int first = key[0] & 0xFF;
+        int lo = first == 0 ? 0 : fanout(first - 1);
+        int hi = fanout(first) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareAt(mid, key, SHA_BYTES);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the positions [from, to) of the objects whose SHA-1s start
+     *  with the hexadecimal numeral PREFIX, as a two-element array. */
+    int[] findPrefix(String prefix) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (idAt(mid).compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int to = lo;
+        while (to < count && idAt(to).startsWith(prefix)) {
+            to += 1;
+        }
+        return new int[] {lo, to};
+    }
+
+    /** Returns the SHA-1 of the object at position I. */
+    String idAt(int i) {
+        byte[] sha = new byte[SHA_BYTES];
+        idx.get(IDX_HEADER + i * SHA_BYTES, sha);
+        return Utils.toHex(sha);
+    }
+
+    /** Returns the type byte of the object at position I. */
+    int typeAt(int i) {
+        return idx.get(IDX_HEADER + count * SHA_BYTES + i) & 0xFF;
+    }
+
+    /** Returns the kind (ObjectStore.Kind ordinal) of the object at
+     *  position I. */
+    int kindAt(int i) {
+        return typeAt(i) & ~DELTA;
+    }
+
+    /** Returns true if the object at position I is stored as a delta. */
+    boolean isDeltaAt(int i) {
+        return (typeAt(i) & DELTA) != 0;
+    }
+
+    /** Returns the offset in the pack file of the contents of the object
+     *  at position I. */
+    long offsetAt(int i) {
+        return idx.getLong(IDX_HEADER + count * (SHA_BYTES + 1) + i * 8);
+    }
+
+    /** Returns the length of the object at position I as stored in the
+     *  pack, which for a delta is the length of the delta. */
+    long lengthAt(int i) {
+        return idx.getLong(IDX_HEADER + count * (SHA_BYTES + 1 + 8) + i * 8);
+    }
+
+    /** Returns true if the object at position I is stored whole behind a
+     *  codec byte and size, as in a version 3 pack. */
+    private boolean compressedAt(int i) {
+        return version() >= 3 && !isDeltaAt(i);
+    }
+
+    /** Returns the size of the object at position I once uncompressed,
+     *  which for a delta is the length of the delta. */
+    long sizeAt(int i) {
+        if (!compressedAt(i)) {
+            return lengthAt(i);
+        }
+        try (DataInputStream in = new DataInputStream(
+                 new RegionInputStream(channel(), offsetAt(i), lengthAt(i)))) {
+            in.readUnsignedByte();
+            return Utils.readVarint(in);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns a stream over the object at position I, uncompressed, or
+     *  over its base's SHA-1 and delta if it is stored as a delta. */
+    InputStream open(int i) {
+        InputStream in = new RegionInputStream(channel(), offsetAt(i), lengthAt(i));
+        if (!compressedAt(i)) {
+            return in;
+        }
+        try {
+            DataInputStream data = new DataInputStream(
+                new BufferedInputStream(in, Utils.BUFFER_SIZE));
+            Codec codec = Codec.forId(data.readUnsignedByte());
+            Utils.readVarint(data);
+            return codec.decompress(data);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Copies the object at position I, which must not be stored as a
+     *  delta, uncompressed to OUT.  An object stored raw is copied without
+     *  passing through the heap. */
+    void copyTo(int i, FileChannel out) throws IOException {
+        if (!compressedAt(i)) {
+            transferTo(i, out);
+        } else if (codecAt(i) == Codec.RAW) {
+            long size = sizeAt(i);
+            transfer(offsetAt(i) + lengthAt(i) - size, size, out);
+        } else {
+            try (InputStream in = open(i)) {
+                in.transferTo(Channels.newOutputStream(out));
+            }
+        }
+    }
+
+    /** Returns the codec of the object at position I, which is stored
+     *  whole. */
+    private Codec codecAt(int i) {
+        ByteBuffer b = ByteBuffer.allocate(1);
+        try {
+            channel().read(b, offsetAt(i));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return Codec.forId(b.get(0) & 0xFF);
+    }
+
+    /** Copies the object at position I as stored in the pack to OUT. */
+    void transferTo(int i, FileChannel out) throws IOException {
+        transfer(offsetAt(i), lengthAt(i), out);
+    }
+
+    /** Copies the LENGTH bytes at OFFSET in the pack file to OUT. */
+    private void transfer(long offset, long length, FileChannel out)
+        throws IOException {
+        long done = 0;
+        while (done < length) {
+            long n = channel().transferTo(offset + done, length - done, out);
+            if (n <= 0) {
+                throw new IOException("truncated pack " + packFile);
+            }
+            done += n;
+        }
+    }
+
+    /** Closes the pack file, if it is open. */
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException excp) {
+                // nothing useful to do
+            }
+            channel = null;
+        }
+    }
+
+    /** Returns the cumulative fan-out count for the first byte B. */
+    private int fanout(int b) {
+        return idx.getInt(12 + b * 4);
+    }
+
+    /** Compares the first LEN bytes of the SHA-1 at position I with KEY. */
+    private int compareAt(int i, byte[] key, int len) {
+        int base = IDX_HEADER + i * SHA_BYTES;
+        for (int k = 0; k < len; k += 1) {
+            int cmp = (idx.get(base + k) & 0xFF) - (key[k] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the open channel on the pack file. */
+    private synchronized FileChannel channel() {
+        if (channel == null) {
+            try {
+                channel = FileChannel.open(packFile.toPath(),
+                                           StandardOpenOption.READ);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return channel;
+    }
+
+    /** Writes the index of a pack holding N objects with the given sorted
+     *  SHA1S, TYPES, OFFSETS and LENGTHS to IDXFILE. */
+    static void writeIndex(File idxFile, String[] sha1s, byte[] types,
+                           long[] offsets, long[] lengths) throws IOException {
+        int n = sha1s.length;
+        ByteBuffer buf = ByteBuffer.allocate(IDX_HEADER + n * (SHA_BYTES + 17));
+        buf.put(IDX_MAGIC).putInt(VERSION).putInt(n);
+        int[] fanout = new int[256];
+        for (String sha : sha1s) {
+            fanout[Integer.parseInt(sha.substring(0, 2), 16)] += 1;
+        }
+        int total = 0;
+        for (int b = 0; b < 256; b += 1) {
+            total += fanout[b];
+            buf.putInt(total);
+        }
+        for (String sha : sha1s) {
+            buf.put(Utils.fromHex(sha));
+        }
+        buf.put(types);
+        for (long offset : offsets) {
+            buf.putLong(offset);
+        }
+        for (long length : lengths) {
+            buf.putLong(length);
+        }
+        buf.flip();
+        try (FileChannel out = FileChannel.open(idxFile.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(true);
+        }
+    }
+
+    /** An input stream over LENGTH bytes of CHANNEL starting at OFFSET,
+     *  read with positional reads so that several streams may share the
+     *  channel. */
+    private static class RegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private long pos;
+        private final long end;
+
+        RegionInputStream(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos >= end) {
+                return -1;
+            }
+            len = (int) Math.min(len, end - pos);
+            int n = channel.read(ByteBuffer.wrap(b, off, len), pos);
+            if (n > 0) {
+                pos += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/** Runs an operation on each of a range of indices on the threads of the
+ *  common ForkJoinPool, so that work on many files uses every core.  The
+ *  range is split in halves until the pieces are no larger than a given
+ *  threshold, which should be about the number of items worth handing to
+ *  a thread at a time.  An exception thrown by the operation is rethrown
+ *  to the caller once the other pieces have finished.
+ *
+ *  Results that must be consumed in order, such as pieces of output, are
+ *  computed by inOrder a bounded number ahead of the consumer, so that
+ *  the threads stay busy without holding every result in memory.
+ */
+class Parallel {
+
+    /** Runs OP on every index in [0, N), splitting the range among
+     *  threads in pieces of at most THRESHOLD indices. */
+    static void forEach(int n, int threshold, IntConsumer op) {
+        ForkJoinPool.commonPool().invoke(new Task(0, n, threshold, op));
+    }
+
+    /** Computes OP on every index in [0, N) on the threads of the common
+     *  ForkJoinPool, and passes the results to SINK in the order of their
+     *  indices, on the calling thread.  At most WINDOW results are computed
+     *  or waiting ahead of SINK.  If OP or SINK throws, the results not
+     *  yet started are cancelled and the exception is rethrown. */
+    static <T> void inOrder(int n, int window, IntFunction<T> op,
+                            Consumer<T> sink) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        ArrayDeque<ForkJoinTask<T>> ahead = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while (next < n || !ahead.isEmpty()) {
+                while (next < n && ahead.size() < window) {
+                    int i = next;
+                    ahead.add(pool.submit(() -> op.apply(i)));
+                    next += 1;
+                }
+                sink.accept(ahead.remove().join());
+            }
+        } finally {
+            for (ForkJoinTask<T> task : ahead) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /** Runs an operation on a range of indices, splitting the range among
+     *  subtasks while it is larger than a threshold. */
+    private static class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        /** The range [FROM, TO) of indices, the threshold and the
+         *  operation. */
+        private final int from, to, threshold;
+        private final IntConsumer op;
+
+        Task(int from, int to, int threshold, IntConsumer op) {
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.op = op;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                for (int i = from; i < to; i += 1) {
+                    op.accept(i);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Task(from, mid, threshold, op),
+                          new Task(mid, to, threshold, op));
+            }
+        }
+    }
+}
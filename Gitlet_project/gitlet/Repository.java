@@ -2,9 +2,16 @@ package gitlet;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import static gitlet.Utils.*;
 
@@ -34,9 +41,18 @@ public class Repository {
     public static final File REMOVED = join(GITLET_DIR, "removed");
     public static final File COMMIT_DIR = join(GITLET_DIR, "commits");
     public static final File BLOB_DIR = join(GITLET_DIR, "blobs");
+    public static final File TREE_DIR = join(GITLET_DIR, "trees");
     public static final File CURR_BRANCH = join(GITLET_DIR, "currentBranch");
     public static final File BRANCHES = join(GITLET_DIR, "branches");
-    public static final File TEMP = join(GITLET_DIR, "temp");
+    public static final File INDEX = join(GITLET_DIR, "index");
+    public static final File PACK_DIR = join(GITLET_DIR, "packs");
+
+    /** Number of files below which staging is not split among more
+     *  threads. */
+    private static final int HASH_THRESHOLD = 4;
+
+    /** Number of commits global-log formats as one piece of work. */
+    private static final int LOG_CHUNK = 512;
 
     /* TODO: fill in the rest of this class. */
     /**
@@ -48,10 +64,15 @@ public class Repository {
      * .gitlet/ -- top level folder for all persistent data
      *    - added/ -- folder containing all of persistent data added
      *    - removed/ -- folder containing ...
-     *    - commits/ -- folder containing commit objects
-     *    - blobs/ -- folder containing blob objects
-     *    - branches/ -- folder noting all our branches
+     *    - commits/ -- folder containing commit objects, fanned out into
+     *                  subfolders by the first two digits of their SHA-1
+     *    - blobs/ -- folder containing blob objects, fanned out likewise
+     *    - trees/ -- folder containing tree objects (see Tree), likewise
+     *    - refs/ -- folder with a file for each branch (see Branch)
+     *    - packed-refs -- file of the branches packed by gc
      *    - current_branch -- file detailing the current branch
+     *    - index -- stat cache of file hashes (see Index)
+     *    - packs/ -- folder containing packed objects (see ObjectStore)
      */
     public static void setUpPersistence() {
         if (!GITLET_DIR.exists()) {
@@ -62,7 +83,7 @@ public class Repository {
         }
         if (!REMOVED.exists()) {
             HashSet<String> removed = new HashSet<>();
-            writeObject(REMOVED, removed);
+            State.setRemovals(removed);
         }
         if (!COMMIT_DIR.exists()) {
             COMMIT_DIR.mkdir();
@@ -70,20 +91,22 @@ public class Repository {
         if (!BLOB_DIR.exists()) {
             BLOB_DIR.mkdir();
         }
-        if (!join(GITLET_DIR, "branches").exists()) {
-            HashMap<String, String> branches = new HashMap<>();
-            branches.put("master", "placeholderHeadSHA");
-            writeObject(BRANCHES, branches);
+        if (!TREE_DIR.exists()) {
+            TREE_DIR.mkdir();
+        }
+        ObjectStore.useHeaders();
+        if (!Branch.REFS_DIR.exists()) {
+            Branch.REFS_DIR.mkdir();
+            State.setBranch("master", "placeholderHeadSHA");
         }
         if (!join(GITLET_DIR, "currentBranch").exists()) {
-            writeContents(CURR_BRANCH, "master");
+            State.setCurrentBranch("master");
         }
     }
 
     public static void initCommand() {
         if (GITLET_DIR.exists()) {
-            System.out.println("A Gitlet version-control system already exists in the current directory.");
-            System.exit(0);
+            throw error("A Gitlet version-control system already exists in the current directory.");
         }
         setUpPersistence();
         makeInitialCommit();
@@ -99,46 +122,134 @@ public class Repository {
         commit.saveCommit();
     }
 
-    public static void addCommand(String filename) {
-        if (!join(CWD, filename).exists()) {
-            System.out.println("File does not exist.");
-            System.exit(0);
-        }
+    /** Commits the staged changes as a merge with message MESSAGE of the
+     *  current branch and the commit SECONDPARENT. */
+    public static void makeCommit(String message, String secondParent) {
+        Commit commit = new Commit(message, secondParent);
+        commit.saveCommit();
+    }
 
-        HashSet<String> removals = readObject(REMOVED, HashSet.class);
-        if (removals.remove(filename)) {
-            writeObject(REMOVED, removals);
-        }
+    /** Stages the working files named by PATHS, each a file name, the
+     *  working directory itself (for all its files) or a glob pattern
+     *  matched against file names.  Files are hashed and copied into the
+     *  staging area in parallel; the files staged for removal are written
+     *  back once. */
+    public static void addCommand(String... paths) {
+        List<String> filenames = new ArrayList<>(workingFiles(paths));
+
+        HashSet<String> removals = State.removals();
+        if (removals.removeAll(filenames)) {
+            State.setRemovals(removals);
+        }
+
+        // each file's version in the current commit is looked up through
+        // the trees on its path, rather than by listing the whole commit
+        Index index = Index.get();
+        String tree = findCurrentCommit().getTree();
+        Parallel.forEach(filenames.size(), HASH_THRESHOLD, i -> {
+            String filename = filenames.get(i);
+            stage(index, filename, Tree.lookup(tree, filename));
+        });
+    }
 
+    /** Stages the working file FILENAME, whose blob in the current commit
+     *  is COMMITFILESHA (null if it is untracked), using INDEX. */
+    private static void stage(Index index, String filename, String commitFileSha) {
+        // stages the file and hashes it in the same pass, unless the index
+        // already knows it to be unchanged, then drops the staged copy again
+        // if it matches the version in the current commit
         File file = join(CWD, filename);
-        if (checkIfChanged(file)) {
-            File copiedFile = join(ADD_DIR, filename);
-            copyContents(file, copiedFile);
-        } else if (checkIfStaged(file)) {
-            File staged = join(ADD_DIR, file.getName());
-            staged.delete();
+        File staged = join(ADD_DIR, filename);
+        String sha = index.cachedSha1(file);
+        if (sha == null || !sha.equals(commitFileSha)) {
+            staged.getParentFile().mkdirs();
+            Journal.prepare(staged);
+            sha = index.copyAndHash(file, staged);
+        }
+        if (sha.equals(commitFileSha)) {
+            Journal.delete(ADD_DIR, filename);
+            index.remove(staged);
+        }
+    }
+
+    /** Returns the paths of the working files named by PATHS, as for
+     *  addCommand. */
+    private static TreeSet<String> workingFiles(String... paths) {
+        TreeSet<String> result = new TreeSet<>();
+        List<String> working = plainFilePathsIn(CWD);
+        for (String path : paths) {
+            List<String> matched = matching(path, working);
+            if (matched == null) {
+                throw error("File does not exist.");
+            }
+            result.addAll(matched);
         }
+        return result;
     }
 
-    public static void copyContents(File original, File duplicate) {
-        byte[] copiedContent = readContents(original);
-        writeContents(duplicate, copiedContent);
+    /** Returns the paths among NAMES, the files that a command may act on,
+     *  that PATH refers to: those matching it if it is a glob pattern
+     *  (whose '*' does not cross directories, but whose '**' does), those
+     *  under it if it names a directory, or the working directory itself,
+     *  and otherwise the file it names if that is one of NAMES.  Returns
+     *  null if it refers to none of them. */
+    private static List<String> matching(String path, Collection<String> names) {
+        List<String> result = new ArrayList<>();
+        if (isGlob(path)) {
+            PathMatcher matcher =
+                FileSystems.getDefault().getPathMatcher("glob:" + path);
+            for (String name : names) {
+                if (matcher.matches(Paths.get(name))) {
+                    result.add(name);
+                }
+            }
+        } else {
+            String relative = pathOf(join(CWD, path));
+            if (relative.isEmpty()) {
+                result.addAll(names);
+            } else if (names.contains(relative)) {
+                result.add(relative);
+            } else {
+                for (String name : names) {
+                    if (name.startsWith(relative + "/")) {
+                        result.add(name);
+                    }
+                }
+            }
+        }
+        return result.isEmpty() ? null : result;
     }
 
-    public static boolean checkIfStaged(File toBeChecked) {
+    /** Returns the path of FILE relative to the working directory, with
+     *  its components separated by '/'. */
+    static String pathOf(File file) {
+        Path relative = CWD.toPath().relativize(file.getAbsoluteFile().toPath().normalize());
+        return relative.toString().replace(File.separatorChar, '/');
+    }
 
-        File staged = join(ADD_DIR, toBeChecked.getName());
-        if (staged.exists()){
-            return true;
+    /** Returns true if PATH is a glob pattern rather than a file name. */
+    private static boolean isGlob(String path) {
+        for (char c : path.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return true;
+            }
         }
         return false;
     }
 
+    /** Moves the staged file STAGED into the blob store and returns the
+     *  SHA-1 of its contents.  The file is hashed and stored with streaming
+     *  reads, so its contents are never held in memory. */
+    public static String storeBlob(File staged) {
+        Index index = Index.get();
+        String sha = index.sha1(staged);
+        index.remove(staged);
+        ObjectStore.moveIn(ObjectStore.Kind.BLOB, sha, staged);
+        return sha;
+    }
+
     public static Commit findCurrentCommit() {
-        String currentBranch = readContentsAsString(CURR_BRANCH);
-        HashMap<String, String> branches = readObject(BRANCHES, HashMap.class);
-        String currentCommitSha = branches.get(currentBranch);
-        Commit currentCommit = readObject(join(COMMIT_DIR, currentCommitSha), Commit.class);
+        Commit currentCommit = Commit.read(State.head());
         return currentCommit;
     }
 
@@ -148,197 +259,247 @@ public class Repository {
         return currentBlobs;
     }
 
-    public static boolean checkIfChanged(File toBeChecked) {
-        HashMap<String, String> currentBlobs = findCommitBlobs();
-        String commitFileSha = currentBlobs.get(toBeChecked.getName());
-        if (commitFileSha == null) {
-            return true;
-        }
-
-        return !commitFileSha.equals(sha1(readContents(toBeChecked)));
-    }
-
     public static void commitCommand(String mes) {
-        if (ADD_DIR.listFiles().length == 0 && readObject(REMOVED, HashSet.class).isEmpty()) {
-            System.out.println("No changes added to the commit.");
-            System.exit(0);
+        if (plainFilePathsIn(ADD_DIR).isEmpty() && State.removals().isEmpty()) {
+            throw error("No changes added to the commit.");
         }
 
         makeCommit(mes);
     }
 
-    public static void logCommand() {
-        Commit currentCommit = findCurrentCommit();
-        Commit p = currentCommit;
-
-        while(true) {
-            p.printCommit();
-            String parentSHA = p.getParentSHA();
-            if (parentSHA == null) {
-                break;
-            }
-            p = readObject(join(COMMIT_DIR, parentSHA), Commit.class);
+    /** Returns the history of the current branch, following first parents
+     *  through the commit graph rather than reading commit objects. */
+    public static String logCommand() {
+        StringBuilder out = new StringBuilder();
+        for (int p = CommitGraph.find(State.head());
+             p != CommitGraph.NONE; p = CommitGraph.parentAt(p, 0)) {
+            printCommit(out, p);
         }
+        return out.toString();
+    }
+
+    /** Appends the log entry of the commit at position POS of the commit
+     *  graph to OUT. */
+    private static void printCommit(StringBuilder out, int pos) {
+        int second = CommitGraph.parentAt(pos, 1);
+        Commit.printCommit(out, CommitGraph.idAt(pos),
+                           second == CommitGraph.NONE ? null
+                           : CommitGraph.idAt(CommitGraph.parentAt(pos, 0)),
+                           second == CommitGraph.NONE ? null
+                           : CommitGraph.idAt(second),
+                           new Date(CommitGraph.timeAt(pos)),
+                           CommitGraph.messageAt(pos));
     }
 
     public static void checkoutCommandHead(String fileName) {
         HashMap<String, String> blobs = findCommitBlobs();
         String commitFileSha = blobs.get(fileName);
         if (commitFileSha == null) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
 
-        copyContents(join(BLOB_DIR, commitFileSha), join(CWD, fileName));
+        ObjectStore.copyTo(ObjectStore.Kind.BLOB, commitFileSha, join(CWD, fileName));
     }
 
     public static void checkoutCommandCommit(String commitSHA, String fileName) {
-        File commitFile = shortenedUID(commitSHA);
-        if (!commitFile.exists()) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+        String commitID = shortenedUID(commitSHA);
+        if (!ObjectStore.contains(ObjectStore.Kind.COMMIT, commitID)) {
+            throw error("No commit with that id exists.");
         }
 
-        Commit commit = readObject(commitFile, Commit.class);
+        Commit commit = Commit.read(commitID);
         HashMap<String, String> blobs = commit.getBlobs();
         String commitFileSha = blobs.get(fileName);
         if (commitFileSha == null) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
 
-        copyContents(join(BLOB_DIR, commitFileSha), join(CWD, fileName));
+        ObjectStore.copyTo(ObjectStore.Kind.BLOB, commitFileSha, join(CWD, fileName));
     }
 
-    public static File shortenedUID(String uid) {
-        List<String> commitSHAS = plainFilenamesIn(COMMIT_DIR);
+    /** Returns the full id of the commit whose id starts with UID, which
+     *  may be abbreviated to as few as six digits.  Full-length ids are
+     *  returned as they are. */
+    public static String shortenedUID(String uid) {
         int len = uid.length();
-        if (len < 6) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
-        } else if (len >= 40) {
-            return join(COMMIT_DIR, uid);
-        } else {
-            for (String sha : commitSHAS) {
-                if (uid.equals(sha.substring(0, len))) {
-                    return join(COMMIT_DIR, sha);
-                }
-            }
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+        if (len >= UID_LENGTH) {
+            return uid;
         }
-        return null;
+        List<String> matches = len < 6 || !uid.matches("[0-9a-f]*")
+            ? List.of() : CommitIndex.resolve(uid);
+        if (matches.isEmpty()) {
+            throw error("No commit with that id exists.");
+        } else if (matches.size() > 1) {
+            throw error("Ambiguous commit id.");
+        }
+        return matches.get(0);
     }
 
     public static void checkoutCommandBranch(String branchName) {
-        HashMap<String, String> branches = readObject(BRANCHES, HashMap.class);
-        if (!branches.containsKey(branchName)) {
-            System.out.println("No such branch exists.");
-            System.exit(0);
+        String headCommitSHA = State.branch(branchName);
+        if (headCommitSHA == null) {
+            throw error("No such branch exists.");
         }
-        if (readContentsAsString(CURR_BRANCH).equals(branchName)) {
-            System.out.println("No need to checkout the current branch.");
-            System.exit(0);
+        if (State.currentBranch().equals(branchName)) {
+            throw error("No need to checkout the current branch.");
         }
 
-        String headCommitSHA = branches.get(branchName);
-        Commit headCommit = readObject(join(COMMIT_DIR, headCommitSHA), Commit.class);
-        HashMap<String, String> headBlobs = headCommit.getBlobs();
+        Commit headCommit = Commit.read(headCommitSHA);
 
-        checkUntrackedCWD();
-        updateCWD(headBlobs);
+        Set<String> working = checkUntrackedCWD();
+        updateCWD(findCurrentCommit(), headCommit, working);
         clearStagingAreas();
 
-        writeContents(CURR_BRANCH, branchName);
+        State.setCurrentBranch(branchName);
     }
 
-    private static void checkUntrackedCWD() {
+    /** Throws an error if any file in the CWD is untracked, or differs
+     *  from both its version in the current commit and its staged version.
+     *  Returns the paths of the files in the CWD. */
+    private static Set<String> checkUntrackedCWD() {
         HashMap<String, String> currentBlobs = findCommitBlobs();
+        Index index = Index.get();
 
-        List<String> cwdFiles = plainFilenamesIn(CWD);
+        List<String> cwdFiles = plainFilePathsIn(CWD);
         for (String fileName : cwdFiles) {
             if (currentBlobs.containsKey(fileName)) {
-                String contents = sha1(readContents(join(CWD, fileName)));
+                String contents = index.sha1(join(CWD, fileName));
                 if (!(currentBlobs.get(fileName)).equals(contents)) {
                     if (!join(ADD_DIR, fileName).exists()) {
-                        System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                        System.exit(0);
-                    } else if (!sha1(readContents(join(ADD_DIR, fileName))).equals(contents)) {
-                        System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                        System.exit(0);
+                        throw error("There is an untracked file in the way; delete it, or add and commit it first.");
+                    } else if (!index.sha1(join(ADD_DIR, fileName)).equals(contents)) {
+                        throw error("There is an untracked file in the way; delete it, or add and commit it first.");
                     }
                 }
             } else {
-                String contents = sha1(readContents(join(CWD, fileName)));
+                String contents = index.sha1(join(CWD, fileName));
                 if (!join(ADD_DIR, fileName).exists()) {
-                    System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                    System.exit(0);
-                } else if (!sha1(readContents(join(ADD_DIR, fileName))).equals(contents)) {
-                    System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                    System.exit(0);
+                    throw error("There is an untracked file in the way; delete it, or add and commit it first.");
+                } else if (!index.sha1(join(ADD_DIR, fileName)).equals(contents)) {
+                    throw error("There is an untracked file in the way; delete it, or add and commit it first.");
                 }
             }
         }
+        return new HashSet<>(cwdFiles);
     }
 
-    private static void updateCWD(HashMap<String, String> blobs) {
-        // deletes files in the CWD that are not in the blobs passed into
-        // this function
-        List<String> cwdFiles = plainFilenamesIn(CWD);
-        for (String fileName : cwdFiles) {
-            if (!blobs.containsKey(fileName)) {
-                join(CWD, fileName).delete();
+    /** Brings the CWD from the files of the commit CURRENT to those of
+     *  TARGET, given the paths WORKING of the files now in the CWD.  Only
+     *  files that differ between the two commits' trees (see Tree.diff)
+     *  are written or deleted, along with any staged files, whose contents
+     *  in the CWD may not match the current commit, and any tracked files
+     *  missing from the CWD, which are restored. */
+    private static void updateCWD(Commit current, Commit target,
+                                  Set<String> working) {
+        TreeMap<String, String> changed = Tree.diff(current.getTree(), target.getTree());
+        for (String path : plainFilePathsIn(ADD_DIR)) {
+            if (!changed.containsKey(path)) {
+                changed.put(path, Tree.lookup(target.getTree(), path));
+            }
+        }
+        for (Map.Entry<String, String> tracked : current.getBlobs().entrySet()) {
+            if (!working.contains(tracked.getKey())
+                && !changed.containsKey(tracked.getKey())) {
+                changed.put(tracked.getKey(), tracked.getValue());
             }
         }
 
-        // copies files from the given blobs to the CWD
-        for (String key : blobs.keySet()) {
-            File blob = join(BLOB_DIR, blobs.get(key));
-            File cwdFile = join(CWD, key);
-            copyContents(blob, cwdFile);
+        // deletes files first, so that a directory may replace a file
+        for (Map.Entry<String, String> file : changed.entrySet()) {
+            if (file.getValue() == null) {
+                deletePath(CWD, file.getKey());
+            }
+        }
+        for (Map.Entry<String, String> file : changed.entrySet()) {
+            if (file.getValue() != null) {
+                File cwdFile = join(CWD, file.getKey());
+                ObjectStore.copyTo(ObjectStore.Kind.BLOB, file.getValue(), cwdFile);
+                Index.get().update(cwdFile, file.getValue());
+            }
         }
     }
 
     private static void clearStagingAreas() {
-        File[] stagedForAdding = Repository.ADD_DIR.listFiles();
-        for (File f : stagedForAdding) {
-            f.delete();
+        for (String path : plainFilePathsIn(ADD_DIR)) {
+            Journal.delete(ADD_DIR, path);
         }
 
-        HashSet<String> stagedForRemoval = readObject(Repository.REMOVED, HashSet.class);
+        HashSet<String> stagedForRemoval = State.removals();
         stagedForRemoval.clear();
-        writeObject(Repository.REMOVED, stagedForRemoval);
+        State.setRemovals(stagedForRemoval);
     }
 
-    public static void globalLogCommand() {
+    /** Returns the log entries of every commit ever made, in the order of
+     *  their ids.  The entries are formatted from the commit graph in
+     *  pieces of LOG_CHUNK commits on several threads (see
+     *  Parallel.inOrder), and joined in order. */
+    public static String globalLogCommand() {
+        int[] order = CommitGraph.inIdOrder();
+        int chunks = (order.length + LOG_CHUNK - 1) / LOG_CHUNK;
+        StringBuilder out = new StringBuilder();
+        Parallel.inOrder(chunks, 2 * ForkJoinPool.getCommonPoolParallelism(), c -> {
+            StringBuilder piece = new StringBuilder();
+            for (int i = c * LOG_CHUNK; i < Math.min(order.length, (c + 1) * LOG_CHUNK);
+                 i += 1) {
+                printCommit(piece, order[i]);
+            }
+            return piece;
+        }, out::append);
+        return out.toString();
+    }
 
-        File[] toBePrinted = COMMIT_DIR.listFiles();
+    /** Returns the ids of the commits with message MESSAGE, one per
+     *  line, as found in the MessageIndex. */
+    public static String findCommand(String message) {
+        return foundCommits(MessageIndex.withMessage(message));
+    }
 
-        for (File f : toBePrinted) {
-            readObject(f, Commit.class).printCommit();
+    /** Returns the ids of the commits whose message matches PATTERN, one
+     *  per line.  OPTION is --token, for messages with the word PATTERN
+     *  (ignoring case), or --regex, for messages in which the regular
+     *  expression PATTERN is found. */
+    public static String findCommand(String option, String pattern) {
+        switch (option) {
+            case "--token":
+                return foundCommits(MessageIndex.withToken(pattern));
+            case "--regex":
+                Pattern regex;
+                try {
+                    regex = Pattern.compile(pattern);
+                } catch (PatternSyntaxException excp) {
+                    throw error("Invalid pattern.");
+                }
+                TreeSet<String> ids = new TreeSet<>();
+                for (int p = 0; p < CommitGraph.size(); p += 1) {
+                    if (regex.matcher(CommitGraph.messageAt(p)).find()) {
+                        ids.add(CommitGraph.idAt(p));
+                    }
+                }
+                return foundCommits(ids);
+            default:
+                throw error("Incorrect operands.");
         }
     }
 
-    public static void findCommand(String message) {
-        File[] toBePrinted = COMMIT_DIR.listFiles();
-        Commit messageFinder;
-        boolean messageFound = false;
-        for (File f : toBePrinted) {
-            messageFinder = readObject(f, Commit.class);
-            if (messageFinder.getMessage().equals(message)) {
-                System.out.println(f.getName());
-                messageFound = true;
-            }
+    /** Returns IDS one per line, or throws if there are none. */
+    private static String foundCommits(Set<String> ids) {
+        if (ids.isEmpty()) {
+            throw error("Found no commit with that message.");
         }
-        if (!messageFound) {
-            System.out.println("Found no commit with that message.");
+        StringBuilder out = new StringBuilder();
+        for (String id : ids) {
+            out.append(id).append("\n");
         }
+        return out.toString();
     }
 
-    public static void statusCommand() {
-        System.out.println("=== Branches ===");
-        HashMap<String, String> branches = readObject(BRANCHES, HashMap.class);
-        String currBranch = readContentsAsString(CURR_BRANCH);
+    /** Returns the status of the repository: its branches, staged and
+     *  removed files, unstaged modifications and untracked files. */
+    public static String statusCommand() {
+        StringBuilder out = new StringBuilder();
+        out.append("=== Branches ===\n");
+        HashMap<String, String> branches = State.branches();
+        String currBranch = State.currentBranch();
         List<String> sorter = new ArrayList<>();
         for (String key : branches.keySet()) {
             sorter.add(key);
@@ -346,109 +507,258 @@ public class Repository {
         Collections.sort(sorter);
         for (String key : sorter) {
             if (key.equals(currBranch)) {
-                System.out.print("*");
+                out.append("*");
             }
-            System.out.println(key);
+            out.append(key).append("\n");
         }
-        System.out.println();
+        out.append("\n");
 
-        System.out.println("=== Staged Files ===");
-        File[] stagedFiles = ADD_DIR.listFiles();
-        sorter = new ArrayList<>();
-        for (File f : stagedFiles) {
-            sorter.add(f.getName());
+        out.append("=== Staged Files ===").append("\n");
+        for (String staged : plainFilePathsIn(ADD_DIR)) {
+            out.append(staged).append("\n");
         }
-        Collections.sort(sorter);
-        for (String staged : sorter) {
-            System.out.println(staged);
-        }
-        System.out.println();
+        out.append("\n");
 
-        System.out.println("=== Removed Files ===");
-        HashSet<String> removedFiles = readObject(REMOVED, HashSet.class);
+        out.append("=== Removed Files ===").append("\n");
+        HashSet<String> removedFiles = State.removals();
         sorter = new ArrayList<>();
         for (String key : removedFiles) {
             sorter.add(key);
         }
         Collections.sort(sorter);
         for (String removed : sorter) {
-            System.out.println(removed);
+            out.append(removed).append("\n");
         }
 
-        System.out.println();
-
-        System.out.println("=== Modifications Not Staged For Commit ===");
+        out.append("\n");
 
-        System.out.println();
-
-        System.out.println("=== Untracked Files ===");
+        out.append("=== Modifications Not Staged For Commit ===").append("\n");
+        HashMap<String, String> currentBlobs = findCommitBlobs();
+        for (String modified : modificationsNotStaged(currentBlobs, removedFiles)) {
+            out.append(modified).append("\n");
+        }
+        out.append("\n");
 
-        System.out.println();
+        out.append("=== Untracked Files ===").append("\n");
+        for (String fileName : plainFilePathsIn(CWD)) {
+            if (!join(ADD_DIR, fileName).exists()
+                && (!currentBlobs.containsKey(fileName) || removedFiles.contains(fileName))) {
+                out.append(fileName).append("\n");
+            }
+        }
+        out.append("\n");
+        return out.toString();
     }
 
-    public static void removeCommand(String filename) {
-        File toBeRemoved = join(ADD_DIR, filename);
-        boolean fileWasStaged = toBeRemoved.exists();
-        if (fileWasStaged) {
-            toBeRemoved.delete();
+    /** Returns the sorted entries of the "Modifications Not Staged For
+     *  Commit" section of status, given the blobs of the current commit
+     *  CURRENTBLOBS and the files staged for removal REMOVEDFILES.  File
+     *  contents are compared through the index, so only files whose stat
+     *  data has changed are rehashed. */
+    private static List<String> modificationsNotStaged(HashMap<String, String> currentBlobs,
+                                                       HashSet<String> removedFiles) {
+        Index index = Index.get();
+        TreeSet<String> result = new TreeSet<>();
+        for (String fileName : currentBlobs.keySet()) {
+            File cwdFile = join(CWD, fileName);
+            if (join(ADD_DIR, fileName).exists() || removedFiles.contains(fileName)) {
+                continue;
+            }
+            if (!cwdFile.exists()) {
+                result.add(fileName + " (deleted)");
+            } else if (!currentBlobs.get(fileName).equals(index.sha1(cwdFile))) {
+                result.add(fileName + " (modified)");
+            }
+        }
+        for (String fileName : plainFilePathsIn(ADD_DIR)) {
+            File cwdFile = join(CWD, fileName);
+            if (!cwdFile.exists()) {
+                result.add(fileName + " (deleted)");
+            } else if (!index.sha1(join(ADD_DIR, fileName)).equals(index.sha1(cwdFile))) {
+                result.add(fileName + " (modified)");
+            }
         }
+        return new ArrayList<>(result);
+    }
 
+    /** Unstages the files named by PATHS, as for addCommand, and if they
+     *  are tracked by the current commit stages them for removal and
+     *  deletes them from the working directory.  Each path must refer to a
+     *  staged or tracked file, or nothing is removed. */
+    public static void removeCommand(String... paths) {
         HashMap<String, String> currentBlobs = findCommitBlobs();
-        if (currentBlobs.containsKey(filename)) {
-            HashSet<String> removals = readObject(REMOVED, HashSet.class);
-            removals.add(filename);
-            writeObject(REMOVED, removals);
-            File cwdFile = join(CWD, filename);
-            if (cwdFile.exists()) {
-                cwdFile.delete();
+        TreeSet<String> candidates = new TreeSet<>(currentBlobs.keySet());
+        candidates.addAll(plainFilePathsIn(ADD_DIR));
+        TreeSet<String> filenames = new TreeSet<>();
+        for (String path : paths) {
+            List<String> matched = matching(path, candidates);
+            if (matched == null) {
+                throw error("No reason to remove the file.");
+            }
+            filenames.addAll(matched);
+        }
+
+        HashSet<String> removals = State.removals();
+        for (String filename : filenames) {
+            Journal.delete(ADD_DIR, filename);
+            if (currentBlobs.containsKey(filename)) {
+                removals.add(filename);
+                deletePath(CWD, filename);
             }
-        } else if (!fileWasStaged) {
-            System.out.println("No reason to remove the file.");
         }
+        State.setRemovals(removals);
     }
 
     public static void branchCommand(String branchName) {
-        HashMap<String, String> branches = readObject(BRANCHES, HashMap.class);
-        if (branches.containsKey(branchName)) {
-            System.out.println("A branch with that name already exists.");
-            System.exit(0);
+        if (State.branch(branchName) != null) {
+            throw error("A branch with that name already exists.");
         }
-        branches.put(branchName, branches.get(readContentsAsString(CURR_BRANCH)));
-        writeObject(BRANCHES, branches);
+        State.setBranch(branchName, State.head());
     }
 
     public static void removeBranchCommand(String branchName) {
-        if (readContentsAsString(CURR_BRANCH).equals(branchName)) {
-            System.out.println("Cannot remove the current branch.");
-            System.exit(0);
+        if (State.currentBranch().equals(branchName)) {
+            throw error("Cannot remove the current branch.");
         }
 
-        HashMap<String, String> branches = readObject(BRANCHES, HashMap.class);
-        if (branches.containsKey(branchName)) {
-            branches.remove(branchName);
-        } else {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+        if (State.branch(branchName) == null) {
+            throw error("A branch with that name does not exist.");
         }
-        writeObject(BRANCHES, branches);
+        State.setBranch(branchName, null);
     }
 
     public static void resetCommand(String commitID) {
-        File desiredCommit = shortenedUID(commitID);
-        if (!desiredCommit.exists()) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+        String desiredCommit = shortenedUID(commitID);
+        if (!ObjectStore.contains(ObjectStore.Kind.COMMIT, desiredCommit)) {
+            throw error("No commit with that id exists.");
         }
-        checkUntrackedCWD();
-        Commit checkoutCommit = readObject(join(COMMIT_DIR, commitID), Commit.class);
-        HashMap<String, String> desiredBlobs = checkoutCommit.getBlobs();
-        updateCWD(desiredBlobs);
+        Set<String> working = checkUntrackedCWD();
+        updateCWD(findCurrentCommit(), Commit.read(desiredCommit), working);
         clearStagingAreas();
 
 
-        HashMap<String, String> branches = readObject(BRANCHES, HashMap.class);
-        String currentBranch = readContentsAsString(CURR_BRANCH);
-        branches.put(currentBranch, commitID);
-        writeObject(BRANCHES, branches);
+        State.setBranch(State.currentBranch(), desiredCommit);
+    }
+
+    /** Merges the branch named BRANCHNAME into the current branch.  The
+     *  files of the current and given heads are merged against their split
+     *  point (see CommitGraph.mergeBase) as described in Merge, and the
+     *  result is committed with both heads as parents.  Returns the message
+     *  to report, if any. */
+    public static String mergeCommand(String branchName) {
+        HashSet<String> removals = State.removals();
+        if (!plainFilePathsIn(ADD_DIR).isEmpty() || !removals.isEmpty()) {
+            throw error("You have uncommitted changes.");
+        }
+        String givenId = State.branch(branchName);
+        if (givenId == null) {
+            throw error("A branch with that name does not exist.");
+        }
+        String currentBranch = State.currentBranch();
+        if (currentBranch.equals(branchName)) {
+            throw error("Cannot merge a branch with itself.");
+        }
+
+        String currentId = State.head();
+        String splitId = CommitGraph.idAt(CommitGraph.mergeBase(
+            CommitGraph.find(currentId), CommitGraph.find(givenId)));
+        if (splitId.equals(givenId)) {
+            return "Given branch is an ancestor of the current branch.\n";
+        }
+        if (splitId.equals(currentId)) {
+            resetCommand(givenId);
+            return "Current branch fast-forwarded.\n";
+        }
+        checkUntrackedCWD();
+
+        Merge merge = new Merge(Commit.read(splitId).getBlobs(),
+                                Commit.read(currentId).getBlobs(),
+                                Commit.read(givenId).getBlobs());
+        merge.classify();
+        merge.apply(CWD, ADD_DIR);
+        for (String fileName : merge.filesTo(Merge.Action.REMOVE)) {
+            deletePath(CWD, fileName);
+            removals.add(fileName);
+        }
+        State.setRemovals(removals);
+        for (Map.Entry<String, String> taken : merge.taken().entrySet()) {
+            Index.get().update(join(CWD, taken.getKey()), taken.getValue());
+        }
+
+        makeCommit(String.format("Merged %s into %s.", branchName, currentBranch),
+                   givenId);
+        if (!merge.filesTo(Merge.Action.CONFLICT).isEmpty()) {
+            return "Encountered a merge conflict.\n";
+        }
+        return "";
+    }
+
+    /** Brings a repository written by an older version of gitlet up to
+     *  date.  Loose objects are moved into their fan-out subdirectories,
+     *  and every commit still in the original serialized format is
+     *  rewritten in the binary commit format.  Since a commit's id is the
+     *  hash of its encoding, migrated commits get new ids, and so do the
+     *  commits whose parents were migrated; parents are rewritten before
+     *  their children and branches are repointed at the new ids.  Loose
+     *  objects written before they had headers are packed, after which new
+     *  loose objects get headers. */
+    public static void migrateCommand() {
+        ObjectStore.shardLooseObjects();
+        HashMap<String, String> renamed = new HashMap<>();
+        HashSet<String> visited = new HashSet<>();
+        for (String sha : ObjectStore.list(ObjectStore.Kind.COMMIT)) {
+            // visits the unvisited ancestors of sha before sha itself, so
+            // that a commit is rewritten after its parents, and whenever
+            // one of them was
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(sha);
+            while (!stack.isEmpty()) {
+                String id = stack.peek();
+                if (visited.contains(id)) {
+                    stack.pop();
+                    continue;
+                }
+                Commit commit = Commit.read(id, true);
+                String first = commit.getParentSHA();
+                String second = commit.getSecondParentSHA();
+                boolean ready = true;
+                for (String parent : new String[] {first, second}) {
+                    if (parent != null && !visited.contains(parent)) {
+                        stack.push(parent);
+                        ready = false;
+                    }
+                }
+                if (!ready) {
+                    continue;
+                }
+                stack.pop();
+                visited.add(id);
+                if (Commit.isLegacy(id) || renamed.containsKey(first)
+                    || renamed.containsKey(second)) {
+                    renamed.put(id, Commit.read(id).migrate(
+                        renamed.getOrDefault(first, first),
+                        renamed.getOrDefault(second, second)));
+                }
+            }
+        }
+
+        // loose objects without headers, and old commits that were already
+        // packed, can only be dealt with by rewriting the pack
+        boolean repack = !ObjectStore.headers();
+        for (String oldId : renamed.keySet()) {
+            repack = repack || ObjectStore.contains(ObjectStore.Kind.COMMIT, oldId);
+        }
+        if (repack) {
+            ObjectStore.repack(renamed.keySet());
+        }
+
+        for (Map.Entry<String, String> branch : State.branches().entrySet()) {
+            if (renamed.containsKey(branch.getValue())) {
+                State.setBranch(branch.getKey(), renamed.get(branch.getValue()));
+            }
+        }
+        CommitIndex.rebuild();
+        CommitGraph.rebuild();
+        MessageIndex.rebuild();
     }
 }
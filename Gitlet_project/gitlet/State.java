@@ -0,0 +1,157 @@
+package gitlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import static gitlet.Utils.*;
+
+/** The small mutable records of a repository (its branches, its current
+ *  branch and its files staged for removal) held in memory while commands
+ *  run.  Each is read the first time a command needs it and written back
+ *  by flush only if it has changed, so that a batch of commands run in one
+ *  JVM reads and writes each of them once rather than once per command.
+ *  Branches are read and written one at a time (see Branch), so a command
+ *  that uses only the current branch reads only its ref.
+ *
+ *  The accessors hand out copies and the setters take copies, just as
+ *  reading and writing the files would, so a command that fails part way
+ *  through leaves exactly the changes it had already made.
+ */
+class State {
+
+    /** The branches read or changed so far, mapping each name to its head
+     *  commit id, or to null if there is no such branch. */
+    private static HashMap<String, String> branches = new HashMap<>();
+    /** True if branches holds every branch. */
+    private static boolean allBranches;
+    /** The name of the current branch, or null if not yet read. */
+    private static String currentBranch;
+    /** The files staged for removal, or null if not yet read. */
+    private static HashSet<String> removals;
+
+    /** The names of the branches changed since they were read. */
+    private static final HashSet<String> changedBranches = new HashSet<>();
+    /** True if the corresponding record has changed since it was read. */
+    private static boolean currentBranchChanged, removalsChanged;
+
+    /** The stamp (see Utils.stamp) of the files when last read or
+     *  written. */
+    private static long stamp;
+
+    /** Returns the branches, mapping names to head commit ids. */
+    static HashMap<String, String> branches() {
+        if (!allBranches) {
+            HashMap<String, String> loaded = new HashMap<>(Branch.all());
+            for (String name : changedBranches) {
+                loaded.put(name, branches.get(name));
+            }
+            branches = loaded;
+            allBranches = true;
+            stamp = stamp();
+        }
+        HashMap<String, String> result = new HashMap<>();
+        for (HashMap.Entry<String, String> branch : branches.entrySet()) {
+            if (branch.getValue() != null) {
+                result.put(branch.getKey(), branch.getValue());
+            }
+        }
+        return result;
+    }
+
+    /** Returns the head commit id of the branch NAME, or null if there is
+     *  no such branch.  Unlike branches, this reads only the one branch. */
+    static String branch(String name) {
+        if (!allBranches && !branches.containsKey(name)) {
+            branches.put(name, Branch.read(name));
+            stamp = stamp();
+        }
+        return branches.get(name);
+    }
+
+    /** Returns the id of the head commit of the current branch. */
+    static String head() {
+        return branch(currentBranch());
+    }
+
+    /** Makes ID the head commit of the branch NAME, creating it if need
+     *  be, or deletes the branch if ID is null. */
+    static void setBranch(String name, String id) {
+        branches.put(name, id);
+        changedBranches.add(name);
+    }
+
+    /** Returns the name of the current branch. */
+    static String currentBranch() {
+        if (currentBranch == null) {
+            currentBranch = readContentsAsString(Repository.CURR_BRANCH);
+            stamp = stamp();
+        }
+        return currentBranch;
+    }
+
+    /** Makes the branch named NAME the current branch. */
+    static void setCurrentBranch(String name) {
+        currentBranch = name;
+        currentBranchChanged = true;
+    }
+
+    /** Returns the files staged for removal. */
+    @SuppressWarnings("unchecked")
+    static HashSet<String> removals() {
+        if (removals == null) {
+            removals = readObject(Repository.REMOVED, HashSet.class);
+            stamp = stamp();
+        }
+        return new HashSet<>(removals);
+    }
+
+    /** Replaces the files staged for removal by REMOVALS. */
+    static void setRemovals(HashSet<String> removals) {
+        State.removals = new HashSet<>(removals);
+        removalsChanged = true;
+    }
+
+    /** Writes the records that have changed back to the repository, as
+     *  part of the change the Journal commits. */
+    static void flush() {
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            return;
+        }
+        if (!changedBranches.isEmpty()) {
+            Branch.migrate();
+            for (String name : changedBranches) {
+                Branch.write(name, branches.get(name));
+            }
+            changedBranches.clear();
+        }
+        if (currentBranchChanged) {
+            Journal.write(Repository.CURR_BRANCH, currentBranch.getBytes(StandardCharsets.UTF_8));
+            currentBranchChanged = false;
+        }
+        if (removalsChanged) {
+            Journal.write(Repository.REMOVED, serialize(removals));
+            removalsChanged = false;
+        }
+        stamp = stamp();
+    }
+
+    /** Forgets the records if none has unsaved changes and their files
+     *  have changed since they were read or written, as by another
+     *  process. */
+    static void revalidate() {
+        if (changedBranches.isEmpty() && !currentBranchChanged && !removalsChanged
+            && stamp() != stamp) {
+            branches = new HashMap<>();
+            allBranches = false;
+            currentBranch = null;
+            removals = null;
+        }
+    }
+
+    /** Returns the stamp of the files holding the records. */
+    private static long stamp() {
+        return Branch.stamp() * 31
+            + Utils.stamp(Repository.CURR_BRANCH, Repository.REMOVED);
+    }
+}
@@ -0,0 +1,479 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** A tree object: the contents of one directory of a commit.  A tree is a
+ *  list of entries in name order, each either a file, naming the blob that
+ *  holds its contents, or a subdirectory, naming the tree that holds it.
+ *
+ *  Since a tree's id is the hash of its encoding, which includes the ids of
+ *  its subtrees, a directory whose contents are unchanged keeps its id from
+ *  commit to commit: its tree is stored once and shared, and two commits
+ *  can be compared without looking inside the subtrees they share.  A new
+ *  commit's tree is made from its parent's by update, which rewrites only
+ *  the trees along the changed paths.
+ *
+ *  So that changing one file of a large directory does not rewrite a tree
+ *  listing all of it, a directory of more than MAX_ENTRIES entries is split
+ *  like a hash array mapped trie: its tree holds instead up to 16 PART
+ *  entries, named by a hexadecimal digit, each naming a tree that holds
+ *  the entries whose names hash (see digit) to that digit, split again if
+ *  need be by the next digit.  The shape depends only on the entries, so
+ *  equal directories still have equal ids.
+ *
+ *  Within a commit, files are named by their paths relative to the working
+ *  directory, with components separated by '/'.  A tree is encoded as
+ *  MAGIC, a version byte, the varint number of entries it holds (through
+ *  its parts, if it is split), and the varint number of entries it lists,
+ *  then for each listed entry its type as a byte, its name (as by
+ *  Utils.writeString) and the 20 bytes of its id.  Version 1 trees, which
+ *  were never split, lack the first count.
+ *
+ *  Trees are immutable, and recently read ones are cached, so that the
+ *  trees shared by many commits are decoded once.
+ */
+class Tree {
+
+    /** Types of entry. */
+    static final int FILE = 0, DIR = 1, PART = 2;
+
+    /** The bytes that start a tree. */
+    private static final byte[] MAGIC = {'g', 't'};
+
+    /** The version of the format written by encode. */
+    private static final int FORMAT_VERSION = 2;
+
+    /** Length of a SHA-1 in bytes. */
+    private static final int SHA_BYTES = UID_LENGTH / 2;
+
+    /** Largest number of entries listed in an unsplit tree. */
+    static final int MAX_ENTRIES = 256;
+
+    /** Number of hexadecimal digits of a name's hash, and so the deepest
+     *  a directory can be split. */
+    private static final int MAX_DEPTH = 8;
+
+    /** Total number of entries of the trees kept in CACHE. */
+    private static final long CACHE_LIMIT = 1 << 20;
+
+    /** Recently read or written trees by id, least recently used first. */
+    private static final LinkedHashMap<String, Tree> CACHE =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Total number of entries of the trees in CACHE.  Both are guarded by
+     *  CACHE's lock, as trees may be read from several threads. */
+    private static long cachedEntries;
+
+    /** An entry of a tree: its type and the id of its blob or tree. */
+    static class Entry {
+        private final int type;
+        private final String id;
+
+        Entry(int type, String id) {
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    /** The entries listed by this tree, by name. */
+    private final TreeMap<String, Entry> entries;
+
+    /** The number of entries of the directory held by this tree, which is
+     *  the number it lists unless it is split. */
+    private final int size;
+
+    /** A tree listing ENTRIES and holding SIZE entries. */
+    private Tree(TreeMap<String, Entry> entries, int size) {
+        this.entries = entries;
+        this.size = size;
+    }
+
+    /** Returns the id of the tree holding FILES, which maps paths to blob
+     *  ids, storing it and its subtrees.  Trees already in the object store
+     *  are not written again. */
+    static String write(Map<String, String> files) {
+        return build(new TreeMap<>(files));
+    }
+
+    /** Returns the id of the tree that holds the files of the tree named
+     *  ID, changed as given by CHANGES: each path of CHANGES is given the
+     *  blob it maps to, or removed if it maps to null.  Only the trees on
+     *  the changed paths are read and written, and directories left empty
+     *  are dropped. */
+    static String update(String id, SortedMap<String, String> changes) {
+        String result = updateDirectory(id, changes);
+        return result != null ? result : write(new TreeMap<>());
+    }
+
+    /** Returns the map from paths to blob ids of the files in the tree
+     *  named ID. */
+    static HashMap<String, String> flatten(String id) {
+        HashMap<String, String> result = new HashMap<>();
+        flatten(id, "", result);
+        return result;
+    }
+
+    /** Returns the files that differ between the trees named FROM and TO,
+     *  mapping the path of each to its blob in TO, or to null if it is not
+     *  in TO.  Subtrees with the same id in both are not read. */
+    static TreeMap<String, String> diff(String from, String to) {
+        TreeMap<String, String> result = new TreeMap<>();
+        diff(from, to, "", result);
+        return result;
+    }
+
+    /** Returns the blob of the file at PATH in the tree named ID, or null
+     *  if there is none.  Only the trees along PATH are read. */
+    static String lookup(String id, String path) {
+        String[] names = path.split("/");
+        for (int i = 0; i < names.length; i += 1) {
+            Entry entry = find(id, names[i], 0);
+            if (entry == null || (entry.type == FILE) != (i == names.length - 1)) {
+                return null;
+            }
+            id = entry.id;
+        }
+        return id;
+    }
+
+    /** Returns the tree named ID. */
+    static Tree read(String id) {
+        synchronized (CACHE) {
+            Tree cached = CACHE.get(id);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Tree result = decode(id);
+        cache(id, result);
+        return result;
+    }
+
+    /** Returns the tree named ID as stored. */
+    private static Tree decode(String id) {
+        try (DataInputStream in = new DataInputStream(
+                 ObjectStore.open(ObjectStore.Kind.TREE, id))) {
+            if (in.readUnsignedByte() != MAGIC[0]
+                || in.readUnsignedByte() != MAGIC[1]) {
+                throw new IllegalArgumentException("bad tree " + id);
+            }
+            int version = in.readUnsignedByte();
+            if (version != 1 && version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("unknown tree format " + version);
+            }
+            long size = version == 1 ? -1 : readVarint(in);
+            TreeMap<String, Entry> entries = new TreeMap<>();
+            long count = readVarint(in);
+            for (long i = 0; i < count; i += 1) {
+                int type = in.readUnsignedByte();
+                String name = readString(in);
+                byte[] sha = new byte[SHA_BYTES];
+                in.readFully(sha);
+                entries.put(name, new Entry(type, toHex(sha)));
+            }
+            return new Tree(entries, size < 0 ? entries.size() : (int) size);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Enters TREE, named ID, into CACHE, evicting the least recently used
+     *  trees while the cache is over CACHE_LIMIT. */
+    private static void cache(String id, Tree tree) {
+        synchronized (CACHE) {
+            Tree old = CACHE.put(id, tree);
+            if (old != null) {
+                cachedEntries -= old.entries.size();
+            }
+            cachedEntries += tree.entries.size();
+            Iterator<Tree> eldest = CACHE.values().iterator();
+            while (cachedEntries > CACHE_LIMIT && eldest.hasNext()) {
+                cachedEntries -= eldest.next().entries.size();
+                eldest.remove();
+            }
+        }
+    }
+
+    /** Stores this tree and returns its id. */
+    String write() {
+        String id = ObjectStore.write(ObjectStore.Kind.TREE, encode());
+        cache(id, this);
+        return id;
+    }
+
+    /** Returns the encoding of this tree. */
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            writeVarint(out, size);
+            writeVarint(out, entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeByte(entry.getValue().type);
+                writeString(out, entry.getKey());
+                out.write(fromHex(entry.getValue().id));
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error serializing tree.");
+        }
+    }
+
+    /** Returns true if this tree is split into parts. */
+    private boolean isSplit() {
+        return !entries.isEmpty() && entries.firstEntry().getValue().type == PART;
+    }
+
+    /** Returns the digit of NAME's hash that picks its part in a tree
+     *  split at DEPTH.  The hash is String.hashCode, which Java defines
+     *  exactly, with its bits mixed. */
+    private static int digit(String name, int depth) {
+        int h = name.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h >>> (28 - 4 * depth)) & 0xf;
+    }
+
+    /** Stores the tree holding FILES, whose paths are relative to its
+     *  directory, and its subtrees, and returns its id. */
+    private static String build(NavigableMap<String, String> files) {
+        TreeMap<String, Entry> entries = new TreeMap<>();
+        String path = files.isEmpty() ? null : files.firstKey();
+        while (path != null) {
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                entries.put(path, new Entry(FILE, files.get(path)));
+                path = files.higherKey(path);
+            } else {
+                // the paths under a directory D are exactly those from "D/"
+                // up to "D0", '0' being the character after '/'
+                String dir = path.substring(0, slash);
+                TreeMap<String, String> inDir = new TreeMap<>();
+                for (Map.Entry<String, String> file
+                         : files.subMap(dir + "/", dir + "0").entrySet()) {
+                    inDir.put(file.getKey().substring(slash + 1), file.getValue());
+                }
+                entries.put(dir, new Entry(DIR, build(inDir)));
+                path = files.ceilingKey(dir + "0");
+            }
+        }
+        return writeNode(entries, 0);
+    }
+
+    /** Stores the tree, at DEPTH within its directory, holding ENTRIES,
+     *  splitting it if it has too many, and returns its id. */
+    private static String writeNode(TreeMap<String, Entry> entries, int depth) {
+        if (entries.size() <= MAX_ENTRIES || depth == MAX_DEPTH) {
+            return new Tree(entries, entries.size()).write();
+        }
+        TreeMap<String, TreeMap<String, Entry>> parts = new TreeMap<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            parts.computeIfAbsent(Integer.toHexString(digit(entry.getKey(), depth)),
+                                  k -> new TreeMap<>())
+                .put(entry.getKey(), entry.getValue());
+        }
+        TreeMap<String, Entry> listed = new TreeMap<>();
+        for (Map.Entry<String, TreeMap<String, Entry>> part : parts.entrySet()) {
+            listed.put(part.getKey(), new Entry(PART, writeNode(part.getValue(), depth + 1)));
+        }
+        return new Tree(listed, entries.size()).write();
+    }
+
+    /** Returns the id of the tree holding the directory held by the tree
+     *  named ID, which is null for an empty directory, changed by CHANGES,
+     *  whose paths are relative to the directory, as for update.  Returns
+     *  null if the directory is left empty. */
+    private static String updateDirectory(String id, SortedMap<String, String> changes) {
+        // the changes to the directory's own entries, null for removals
+        TreeMap<String, Entry> changed = new TreeMap<>();
+        while (!changes.isEmpty()) {
+            String path = changes.firstKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                String blob = changes.get(path);
+                changed.put(path, blob == null ? null : new Entry(FILE, blob));
+                changes = changes.tailMap(path + "\0");
+            } else {
+                String dir = path.substring(0, slash);
+                TreeMap<String, String> inDir = new TreeMap<>();
+                for (Map.Entry<String, String> change
+                         : changes.subMap(dir + "/", dir + "0").entrySet()) {
+                    inDir.put(change.getKey().substring(slash + 1), change.getValue());
+                }
+                Entry old = id == null ? null : find(id, dir, 0);
+                String sub = updateDirectory(old != null && old.type == DIR ? old.id : null,
+                                             inDir);
+                changed.put(dir, sub == null ? null : new Entry(DIR, sub));
+                changes = changes.tailMap(dir + "0");
+            }
+        }
+        return updateNode(id, changed, 0);
+    }
+
+    /** Returns the id of the tree, at DEPTH within its directory, holding
+     *  the entries of the tree named ID (null for none) with CHANGED
+     *  applied: each name of CHANGED is given its entry, or removed if it
+     *  maps to null.  Returns null if no entries are left. */
+    private static String updateNode(String id, TreeMap<String, Entry> changed, int depth) {
+        if (changed.isEmpty()) {
+            return id;
+        }
+        Tree tree = id == null ? new Tree(new TreeMap<>(), 0) : read(id);
+        if (!tree.isSplit()) {
+            TreeMap<String, Entry> entries = new TreeMap<>(tree.entries);
+            for (Map.Entry<String, Entry> change : changed.entrySet()) {
+                if (change.getValue() == null) {
+                    entries.remove(change.getKey());
+                } else {
+                    entries.put(change.getKey(), change.getValue());
+                }
+            }
+            return entries.isEmpty() ? null : writeNode(entries, depth);
+        }
+
+        TreeMap<String, TreeMap<String, Entry>> byPart = new TreeMap<>();
+        for (Map.Entry<String, Entry> change : changed.entrySet()) {
+            byPart.computeIfAbsent(Integer.toHexString(digit(change.getKey(), depth)),
+                                   k -> new TreeMap<>())
+                .put(change.getKey(), change.getValue());
+        }
+        TreeMap<String, Entry> listed = new TreeMap<>(tree.entries);
+        int size = tree.size;
+        for (Map.Entry<String, TreeMap<String, Entry>> part : byPart.entrySet()) {
+            Entry old = listed.get(part.getKey());
+            String oldId = old == null ? null : old.id;
+            String newId = updateNode(oldId, part.getValue(), depth + 1);
+            size += (newId == null ? 0 : read(newId).size)
+                - (oldId == null ? 0 : read(oldId).size);
+            if (newId == null) {
+                listed.remove(part.getKey());
+            } else {
+                listed.put(part.getKey(), new Entry(PART, newId));
+            }
+        }
+        if (size == 0) {
+            return null;
+        } else if (size <= MAX_ENTRIES) {
+            // few enough entries are left to list them in one tree again
+            TreeMap<String, Entry> entries = new TreeMap<>();
+            for (Entry part : listed.values()) {
+                entries.putAll(entriesOf(part.id));
+            }
+            return writeNode(entries, depth);
+        }
+        return new Tree(listed, size).write();
+    }
+
+    /** Returns the entry named NAME of the directory held by the tree
+     *  named ID, at DEPTH within the directory, or null if there is
+     *  none. */
+    private static Entry find(String id, String name, int depth) {
+        Tree tree = read(id);
+        if (!tree.isSplit()) {
+            return tree.entries.get(name);
+        }
+        Entry part = tree.entries.get(Integer.toHexString(digit(name, depth)));
+        return part == null ? null : find(part.id, name, depth + 1);
+    }
+
+    /** Returns the entries of the directory held by the tree named ID (or
+     *  the part of it held by that tree), by name. */
+    private static TreeMap<String, Entry> entriesOf(String id) {
+        Tree tree = read(id);
+        if (!tree.isSplit()) {
+            return tree.entries;
+        }
+        TreeMap<String, Entry> result = new TreeMap<>();
+        for (Entry part : tree.entries.values()) {
+            result.putAll(entriesOf(part.id));
+        }
+        return result;
+    }
+
+    /** Adds the files of the tree named ID to RESULT, prefixing their
+     *  paths with PREFIX. */
+    private static void flatten(String id, String prefix,
+                                Map<String, String> result) {
+        for (Map.Entry<String, Entry> entry : read(id).entries.entrySet()) {
+            Entry value = entry.getValue();
+            if (value.type == PART) {
+                flatten(value.id, prefix, result);
+            } else if (value.type == DIR) {
+                flatten(value.id, prefix + entry.getKey() + "/", result);
+            } else {
+                result.put(prefix + entry.getKey(), value.id);
+            }
+        }
+    }
+
+    /** Adds the files that differ between the trees named FROM and TO,
+     *  either of which may be null for an empty tree, to RESULT as for
+     *  diff, prefixing their paths with PREFIX.  FROM and TO hold the same
+     *  directory, or the same part of it. */
+    private static void diff(String from, String to, String prefix,
+                             Map<String, String> result) {
+        if (from != null && from.equals(to)) {
+            return;
+        }
+        Tree before = from == null ? null : read(from);
+        Tree after = to == null ? null : read(to);
+        if (before != null && after != null && before.isSplit() && after.isSplit()) {
+            // parts at the same place hold the same names, so can be
+            // compared pairwise
+            TreeSet<String> parts = new TreeSet<>(before.entries.keySet());
+            parts.addAll(after.entries.keySet());
+            for (String part : parts) {
+                Entry old = before.entries.get(part);
+                Entry now = after.entries.get(part);
+                diff(old == null ? null : old.id, now == null ? null : now.id,
+                     prefix, result);
+            }
+            return;
+        }
+        TreeMap<String, Entry> beforeEntries = from == null ? new TreeMap<>() : entriesOf(from);
+        TreeMap<String, Entry> afterEntries = to == null ? new TreeMap<>() : entriesOf(to);
+        TreeSet<String> names = new TreeSet<>(beforeEntries.keySet());
+        names.addAll(afterEntries.keySet());
+        for (String name : names) {
+            Entry old = beforeEntries.get(name);
+            Entry now = afterEntries.get(name);
+            if (old != null && now != null && old.type == now.type
+                && old.id.equals(now.id)) {
+                continue;
+            }
+            String path = prefix + name;
+            if (old != null && old.type == DIR) {
+                diff(old.id, now != null && now.type == DIR ? now.id : null,
+                     path + "/", result);
+            } else if (old != null && (now == null || now.type == DIR)) {
+                result.put(path, null);
+            }
+            if (now != null && now.type == DIR) {
+                if (old == null || old.type != DIR) {
+                    diff(null, now.id, path + "/", result);
+                }
+            } else if (now != null) {
+                result.put(path, now.id);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/** Checks of gitlet's storage code that the integration tests cannot make
+ *  from the command line, whose main program is invoked as
+ *      java -ea gitlet.UnitTest
+ *  It works in a scratch repository, prints the number of checks made and
+ *  exits with status 1 if one fails.
+ */
+public class UnitTest {
+
+    /** Number of checks made so far. */
+    private static int checks;
+
+    /** Runs every check. */
+    public static void main(String... args) {
+        File dir;
+        try {
+            dir = Files.createTempDirectory("gitlet-unit").toFile();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        // must happen before Repository is loaded, as it fixes GITLET_DIR
+        System.setProperty("user.dir", dir.getPath());
+        Repository.GITLET_DIR.mkdir();
+        try {
+            looseMagic();
+        } catch (AssertionError excp) {
+            System.out.printf("FAILED after %d checks: %s%n", checks,
+                              excp.getMessage());
+            System.exit(1);
+        } finally {
+            delete(dir);
+        }
+        System.out.printf("%d checks passed%n", checks);
+    }
+
+    /** Checks that blobs whose contents start like a loose object header,
+     *  naming each codec, read back unchanged when written raw without
+     *  headers, as a repository made before headers does, and when written
+     *  with headers under every codec, both loose and packed. */
+    static void looseMagic() {
+        Repository.BLOB_DIR.mkdir();
+        byte[][] samples = new byte[Codec.values().length][];
+        for (Codec codec : Codec.values()) {
+            samples[codec.ordinal()] = sample(codec);
+        }
+
+        ObjectStore.revalidate();
+        check(!ObjectStore.headers(), "scratch repository has headers");
+        for (byte[] sample : samples) {
+            roundTrip(sample);
+        }
+        ObjectStore.repack();
+        check(ObjectStore.headers(), "repack left loose objects without headers");
+        for (byte[] sample : samples) {
+            roundTrip(sample);
+        }
+
+        for (Codec codec : Codec.values()) {
+            System.setProperty("gitlet.codec", codec.name().toLowerCase());
+            for (byte[] sample : samples) {
+                // a different object for each codec, so that it is written
+                // loose rather than found in the pack
+                byte[] contents = Arrays.copyOf(sample, sample.length + 1);
+                contents[sample.length] = (byte) codec.id();
+                roundTrip(contents);
+            }
+        }
+        ObjectStore.repack();
+        System.clearProperty("gitlet.codec");
+    }
+
+    /** Returns the contents of a blob that starts with the header of a
+     *  loose object written with CODEC. */
+    private static byte[] sample(Codec codec) {
+        byte[] text = "\u0005 not really compressed\n".getBytes();
+        byte[] result = new byte[5 + text.length];
+        result[1] = 'g';
+        result[2] = 'l';
+        result[3] = 'z';
+        result[4] = (byte) codec.id();
+        System.arraycopy(text, 0, result, 5, text.length);
+        return result;
+    }
+
+    /** Stores CONTENTS both with ObjectStore.write and ObjectStore.moveIn,
+     *  and checks that every way of reading it back gives CONTENTS. */
+    private static void roundTrip(byte[] contents) {
+        String sha = ObjectStore.write(ObjectStore.Kind.BLOB, contents);
+        check(sha.equals(Utils.sha1(contents)), "wrong id for " + sha);
+        File staged = Utils.join(Repository.GITLET_DIR, "staged");
+        Utils.writeContents(staged, contents);
+        ObjectStore.moveIn(ObjectStore.Kind.BLOB, sha, staged);
+
+        check(Arrays.equals(ObjectStore.readBytes(ObjectStore.Kind.BLOB, sha),
+                            contents), "readBytes changed " + sha);
+        try (InputStream in = ObjectStore.open(ObjectStore.Kind.BLOB, sha)) {
+            check(Arrays.equals(in.readAllBytes(), contents),
+                  "open changed " + sha);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        File copy = Utils.join(Repository.GITLET_DIR, "copy");
+        ObjectStore.copyTo(ObjectStore.Kind.BLOB, sha, copy);
+        check(Arrays.equals(Utils.readContents(copy), contents),
+              "copyTo changed " + sha);
+        copy.delete();
+    }
+
+    /** Counts a check, failing it with MESSAGE unless OK. */
+    private static void check(boolean ok, String message) {
+        checks += 1;
+        if (!ok) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /** Deletes DIR and everything in it. */
+    private static void delete(File dir) {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
@@ -2,6 +2,8 @@ package gitlet;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
@@ -9,12 +11,17 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Formatter;
 import java.util.List;
 
@@ -47,11 +54,7 @@ class Utils {
                     throw new IllegalArgumentException("improper type to sha1");
                 }
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
-            }
-            return result.toString();
+            return toHex(md.digest());
         } catch (NoSuchAlgorithmException excp) {
             throw new IllegalArgumentException("System does not support SHA-1");
         }
@@ -63,6 +66,108 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Size of the buffer used when streaming file contents. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /** Returns the SHA-1 hash of the contents of FILE, read through a
+     *  fixed-size buffer so that memory use does not depend on the size
+     *  of FILE.  Throws IllegalArgumentException in case of problems. */
+    static String sha1(File file) {
+        return copyAndHash(file, null);
+    }
+
+    /** Copies the contents of SOURCE to DEST, creating or overwriting it as
+     *  needed, and returns the SHA-1 hash of those contents.  Both the copy
+     *  and the hash are done in a single pass through a fixed-size buffer.
+     *  DEST may be null, in which case SOURCE is only hashed.  Throws
+     *  IllegalArgumentException in case of problems. */
+    static String copyAndHash(File source, File dest) {
+        if (!source.isFile()) {
+            throw new IllegalArgumentException("must be a normal file");
+        }
+        if (dest != null && dest.isDirectory()) {
+            throw new IllegalArgumentException("cannot overwrite directory");
+        }
+        try (FileChannel in = FileChannel.open(source.toPath(),
+                                               StandardOpenOption.READ);
+             FileChannel out = dest == null ? null
+                 : FileChannel.open(dest.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            while (in.read(buf) != -1) {
+                buf.flip();
+                md.update(buf.array(), 0, buf.limit());
+                while (out != null && buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                buf.clear();
+            }
+            return toHex(md.digest());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Returns a value that changes whenever any of FILES is created,
+     *  deleted, resized or modified, for telling whether data read from
+     *  them is still current.  Timestamps are too coarse to tell apart two
+     *  writes of the same length made in quick succession, so the value
+     *  also changes whenever another process is found to have committed a
+     *  change to the repository (see Journal.revalidate). */
+    static long stamp(File... files) {
+        long result = 17 + Journal.changes();
+        for (File file : files) {
+            result = 31 * (31 * result + file.lastModified()) + file.length();
+        }
+        return result;
+    }
+
+    /** Copies the contents of SOURCE to DEST, creating or overwriting it as
+     *  needed.  The copy is handed to the operating system with
+     *  FileChannel.transferTo, which lets it move the data without passing
+     *  it through the Java heap (and fall back to an ordinary copy where it
+     *  cannot).  Throws IllegalArgumentException in case of problems. */
+    static void transferContents(File source, File dest) {
+        if (!source.isFile()) {
+            throw new IllegalArgumentException("must be a normal file");
+        }
+        if (dest.isDirectory()) {
+            throw new IllegalArgumentException("cannot overwrite directory");
+        }
+        try (FileChannel in = FileChannel.open(source.toPath(),
+                                               StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long pos = 0;
+            while (pos < size) {
+                long n = in.transferTo(pos, size - pos, out);
+                if (n <= 0) {
+                    break;
+                }
+                pos += n;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns BYTES as a lower-case hexadecimal numeral. */
+    static String toHex(byte[] bytes) {
+        Formatter result = new Formatter();
+        for (byte b : bytes) {
+            result.format("%02x", b);
+        }
+        return result.toString();
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -188,6 +293,60 @@ class Utils {
         return plainFilenamesIn(new File(dir));
     }
 
+    /** Returns a list of the paths of all plain files in the directory DIR
+     *  and its subdirectories, relative to DIR and with their components
+     *  separated by '/', in lexicographic order as Java Strings.
+     *  Directories named .gitlet are not entered.  Returns an empty list if
+     *  DIR does not denote a directory. */
+    static List<String> plainFilePathsIn(File dir) {
+        List<String> result = new ArrayList<>();
+        addPlainFilePaths(dir, "", result);
+        Collections.sort(result);
+        return result;
+    }
+
+    /** Adds the paths of the plain files under DIR, each prefixed by
+     *  PREFIX, to RESULT. */
+    private static void addPlainFilePaths(File dir, String prefix,
+                                          List<String> result) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile()) {
+                result.add(prefix + file.getName());
+            } else if (file.isDirectory() && !file.getName().equals(".gitlet")) {
+                addPlainFilePaths(file, prefix + file.getName() + "/", result);
+            }
+        }
+    }
+
+    /** Deletes the file at PATH, relative to the directory DIR, if there is
+     *  one, and then any of the directories between it and DIR that are
+     *  left empty. */
+    static void deletePath(File dir, String path) {
+        File file = join(dir, path);
+        file.delete();
+        // a directory can only be deleted once it is empty
+        File parent = file.getParentFile();
+        while (parent != null && parent.getPath().length() > dir.getPath().length()
+               && parent.delete()) {
+            parent = parent.getParentFile();
+        }
+    }
+
+    /** Returns a new, empty file in DIR whose name starts with PREFIX, to
+     *  be written and then renamed into place.  Its name is unique, so that
+     *  processes doing this at once do not write the same file. */
+    static File tempFile(File dir, String prefix) {
+        try {
+            return Files.createTempFile(dir.toPath(), prefix, null).toFile();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /* OTHER FILE UTILITIES */
 
     /** Return the concatentation of FIRST and OTHERS into a File designator */
@@ -218,6 +377,53 @@ class Utils {
 
 
 
+    /* BINARY ENCODING UTILITIES */
+
+    /** Writes the non-negative VALUE to OUT as an unsigned LEB128 varint. */
+    static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /** Reads an unsigned LEB128 varint from IN. */
+    static long readVarint(DataInput in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /** Writes STR to OUT as a varint length followed by its UTF-8 bytes. */
+    static void writeString(DataOutput out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /** Reads a string written by writeString from IN. */
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Returns the bytes denoted by the hexadecimal numeral HEX. */
+    static byte[] fromHex(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
     /* MESSAGES AND ERROR REPORTING */
 
     /** Return a GitletException whose message is composed from MSG and ARGS as
@@ -0,0 +1,381 @@
+import sys, re
+from subprocess import run, Popen, PIPE, DEVNULL, TimeoutExpired
+from os.path import abspath, dirname, exists, isdir, join, relpath
+from getopt import getopt, GetoptError
+from os import environ, mkdir, remove, walk
+from shutil import copyfile, rmtree
+from tempfile import mkdtemp
+from time import sleep, monotonic
+
+SHORT_USAGE = """\
+Usage: python3 daemon.py OPTIONS TEST.in ...
+
+   OPTIONS may include
+       --src=SRC      Use SRC instead of "src" as the subdirectory containing
+                      files referenced by + and = lines in the tests.
+       --progdir=DIR  Directory or JAR files containing gitlet application
+       --keep         Keep the test directories
+"""
+
+USAGE = SHORT_USAGE + """\
+
+Checks that commands sent through gitlet.Client to a running gitlet.Daemon
+have exactly the output and exit status of the same commands run as
+java gitlet.Main.  Each TEST.in (in the format read by tester.py) is
+replayed twice, in two temporary directories: once running every command
+with gitlet.Main, and once with gitlet.Client, starting a daemon in each
+directory as soon as it holds a repository.  After each command, the two
+standard outputs, standard errors and exit statuses must agree, once the
+commit ids (which hold the time of the commit) and dates are replaced by
+placeholders, the lists of find and global-log (which are in the order
+of the ids) are sorted, and the stack frames of an exception (which show Daemon
+rather than Main.main at their base) are dropped.  Expected outputs in
+the tests are only used to find the groups of ${N} substitutions, which
+are taken separately on each side.  When a test ends, each daemon is
+stopped with java gitlet.Daemon stop, which must exit quietly, and the
+two working trees must hold the same files.
+
+A built-in scenario is run as well.  It runs commands outside any
+repository, commands that fail with an error message, one that fails
+with an exception (and so exit status 1) on a corrupted repository, and
+commands after the daemon has been stopped (which the client runs
+itself) and after it has been started again.
+
+Exits with status 0 if every check passes and 1 otherwise.
+"""
+
+TIMEOUT = 10
+
+JAVA_COMMAND = "exec java -ea"
+
+# Commands run with gitlet.Main, and through the daemon with gitlet.Client.
+SIDES = ("gitlet.Main", "gitlet.Client")
+
+# The built-in scenario, as steps like those read from a test (see
+# read_steps), and "stop" and "start" to stop and restart the daemon, and
+# "corrupt" to overwrite the record of the files staged for removal.
+SCENARIO = [
+    ("run", "status"), ("run", "log"), ("run", ""), ("run", "bogus"),
+    ("run", "init"),
+    ("copy", "a.txt", "wug.txt"), ("run", "add a.txt"),
+    ("run", "add nosuch.txt"), ("run", "commit"), ("run", 'commit ""'),
+    ("run", 'commit "wug"'), ("run", 'commit "nothing"'),
+    ("run", "branch other"), ("run", "branch other"),
+    ("run", "checkout nosuch"), ("run", "rm-branch master"),
+    ("run", "init"), ("run", "status"), ("run", "log"),
+    ("cd", "sub"), ("run", "status"), ("run", "init"), ("run", "log"),
+    ("cd", ""),
+    ("stop",),
+    ("copy", "b.txt", "notwug.txt"), ("run", "add b.txt"),
+    ("run", 'commit "notwug"'), ("run", "status"), ("run", "log"),
+    ("start",),
+    ("run", "checkout other"), ("run", "status"), ("run", "log"),
+    ("corrupt",), ("run", "status"), ("run", "rm a.txt"),
+]
+
+def Usage():
+    print(SHORT_USAGE, file=sys.stderr)
+    sys.exit(1)
+
+def read_steps(test):
+    """Returns the steps of TEST, following its includes: ("cd", DIR),
+    ("copy", DEST, SRC), ("delete", NAME), ("define", NAME, VALUE) and
+    ("run", COMMAND, EXPECTED, IS_REGEXP).  Checks of files are skipped."""
+    steps = []
+    with open(test) as inp:
+        lines = inp.read().split("\n")
+    i = 0
+    while i < len(lines):
+        line = lines[i]
+        i += 1
+        m = re.match(r'\s*#|\s*$', line)
+        if m:
+            continue
+        m = re.match(r'I\s+(\S+)', line)
+        if m:
+            steps += read_steps(join(dirname(test), m.group(1)))
+            continue
+        m = re.match(r'C\s*(\S*)', line)
+        if m:
+            steps.append(("cd", m.group(1)))
+            continue
+        m = re.match(r'\+\s*(\S+)\s+(\S+)', line)
+        if m:
+            steps.append(("copy", m.group(1), m.group(2)))
+            continue
+        m = re.match(r'-\s*(\S+)', line)
+        if m:
+            steps.append(("delete", m.group(1)))
+            continue
+        m = re.match(r'(?s)D\s*([a-zA-Z_][a-zA-Z_0-9]*)\s*"(.*)"\s*$', line)
+        if m:
+            steps.append(("define", m.group(1), m.group(2)))
+            continue
+        m = re.match(r'>\s*(.*)', line)
+        if m:
+            command, expected = m.group(1), []
+            while i < len(lines) and not re.match(r'<<<', lines[i]):
+                expected.append(lines[i].rstrip())
+                i += 1
+            if i == len(lines):
+                raise ValueError("unterminated command: {}".format(line))
+            is_regexp = lines[i].startswith("<<<*")
+            i += 1
+            steps.append(("run", command, expected, is_regexp))
+            continue
+        if not re.match(r'[=*ET]', line):
+            raise ValueError("bad test line: {}".format(line))
+    return steps
+
+class Side:
+    """One of the two runs of a test, in its own directory, with gitlet
+    class PROGRAM."""
+
+    def __init__(self, program, base):
+        self.program = program
+        self.top = mkdtemp(prefix="{}-{}-".format(base, program.split(".")[1]))
+        self.cwd = self.top
+        self.daemons = {}
+        self.stopped = set()
+        self.defns = {}
+        self.groups = []
+        self.ids = {}
+
+    def subst(self, text):
+        def var(m):
+            key = m.group(1)
+            if re.match(r'\d+$', key):
+                if int(key) >= len(self.groups):
+                    raise ValueError("nonexistent group: {{{}}}".format(key))
+                return self.groups[int(key)]
+            if key not in self.defns:
+                raise ValueError("undefined substitution: ${{{}}}".format(key))
+            return self.defns[key]
+        for _ in range(10):
+            text, n = re.subn(r'\$\{(.*?)\}', var, text)
+            if n == 0:
+                break
+        return text
+
+    def run(self, command, expected, is_regexp):
+        """Runs COMMAND, and returns its standard output and error and exit
+        status, normalized."""
+        command = self.subst(command)
+        expected = [self.subst(line) for line in expected]
+        try:
+            result = run("{} {} {}".format(JAVA_COMMAND, self.program, command),
+                         shell=True, cwd=self.cwd, stdin=DEVNULL, stdout=PIPE,
+                         stderr=PIPE, universal_newlines=True, timeout=TIMEOUT)
+        except TimeoutExpired:
+            return "timeout", "", None
+        self.match(expected, result.stdout, is_regexp)
+        if self.program == "gitlet.Client" \
+           and isdir(join(self.cwd, ".gitlet")) \
+           and self.cwd not in self.daemons and self.cwd not in self.stopped:
+            self.start()
+        return (self.normalize(result.stdout, command), frames(result.stderr),
+                result.returncode)
+
+    def match(self, expected, actual, is_regexp):
+        """Sets the groups for ${N} from ACTUAL matched against EXPECTED,
+        as tester.py does."""
+        expected = re.sub(r'[ \t]+\n', '\n', '\n'.join(expected))
+        expected = re.sub(r'(?m)^[ \t]+', ' ', expected)
+        actual = re.sub(r'[ \t]+\n', '\n', actual)
+        actual = re.sub(r'(?m)^[ \t]+', ' ', actual)
+        self.groups = [actual]
+        if is_regexp:
+            m = re.match(expected.rstrip() + r"\Z", actual) \
+                or re.match(expected.rstrip() + r"\Z", actual.rstrip())
+            if m:
+                self.groups += m.groups()
+
+    def normalize(self, out, command):
+        """Replaces the commit ids in OUT, the output of COMMAND, by their
+        order of first appearance on this side, and dates by a placeholder.
+        The ids listed by find and the entries of global-log, which are in
+        the order of the ids, are sorted."""
+        def name(id):
+            for known in self.ids:
+                if known.startswith(id) or id.startswith(known):
+                    self.ids[id] = self.ids[known]
+                    return self.ids[id]
+            return self.ids.setdefault(id, "<{}>".format(len(self.ids)))
+        out = re.sub(r'\b[0-9a-f]{40}\b', lambda m: name(m.group(0)), out)
+        out = re.sub(r'(?m)^(Merge:)((?: [0-9a-f]+)+)$',
+                     lambda m: m.group(1) + re.sub(
+                         r'[0-9a-f]+', lambda n: name(n.group(0)), m.group(2)),
+                     out)
+        out = re.sub(r'(?m)^Date: .*$', 'Date: <date>', out)
+        if re.fullmatch(r'(?:<\d+>\n)+', out):
+            out = "".join(sorted(out.splitlines(True)))
+        elif command.startswith("global-log"):
+            out = "".join(sorted(re.split(r'(?m)^(?====\n)', out)))
+        return out
+
+    def start(self):
+        """Starts a daemon serving the repository in the current directory,
+        and waits for it to listen."""
+        daemon = Popen("{} gitlet.Daemon".format(JAVA_COMMAND), shell=True,
+                       cwd=self.cwd, stdin=DEVNULL, stdout=PIPE, stderr=PIPE,
+                       universal_newlines=True)
+        socket = join(self.cwd, ".gitlet", "daemon.sock")
+        deadline = monotonic() + TIMEOUT
+        while not exists(socket) and daemon.poll() is None \
+              and monotonic() < deadline:
+            sleep(0.05)
+        if not exists(socket):
+            daemon.kill()
+            out, err = daemon.communicate()
+            raise ValueError("daemon in {} did not start:\n{}{}"
+                             .format(self.cwd, out, err))
+        self.daemons[self.cwd] = daemon
+        self.stopped.discard(self.cwd)
+
+    def stop(self, where):
+        """Stops the daemon serving the repository in WHERE, returning a
+        list of what went wrong."""
+        problems = []
+        daemon = self.daemons.pop(where)
+        self.stopped.add(where)
+        result = run("{} gitlet.Daemon stop".format(JAVA_COMMAND), shell=True,
+                     cwd=where, stdin=DEVNULL, stdout=PIPE, stderr=PIPE,
+                     universal_newlines=True, timeout=TIMEOUT)
+        if result.returncode != 0 or result.stdout or result.stderr:
+            problems.append("gitlet.Daemon stop exited with {}:\n{}{}"
+                            .format(result.returncode, result.stdout,
+                                    result.stderr))
+        try:
+            out, err = daemon.communicate(timeout=TIMEOUT)
+        except TimeoutExpired:
+            daemon.kill()
+            daemon.communicate()
+            return problems + ["daemon in {} did not stop".format(where)]
+        if daemon.returncode != 0 or out or err:
+            problems.append("daemon in {} exited with {}:\n{}{}"
+                            .format(where, daemon.returncode, out, err))
+        if exists(join(where, ".gitlet", "daemon.sock")):
+            problems.append("daemon in {} left its socket".format(where))
+        return problems
+
+    def close(self):
+        problems = []
+        for where in list(self.daemons):
+            problems += self.stop(where)
+        if not keep:
+            rmtree(self.top, ignore_errors=True)
+        return problems
+
+def frames(err):
+    """Returns ERR without the stack frames of exceptions."""
+    return re.sub(r'(?m)^\s+(?:at |\.\.\. \d+ more).*\n', '', err)
+
+def tree(top):
+    """Returns a map of the files outside .gitlet under TOP to their
+    contents."""
+    files = {}
+    for path, dirs, names in walk(top):
+        if ".gitlet" in dirs:
+            dirs.remove(".gitlet")
+        for name in names:
+            with open(join(path, name), "rb") as inp:
+                files[relpath(join(path, name), top)] = inp.read()
+    return files
+
+def corrupt(top):
+    """Overwrites the record of the files staged for removal in the
+    repository in TOP, which every command that reads it then fails on."""
+    with open(join(top, ".gitlet", "removed"), "w") as out:
+        out.write("garbage")
+
+def replay(name, steps):
+    """Runs STEPS on both sides, returning a list of the differences."""
+    sides = [Side(program, name) for program in SIDES]
+    problems = []
+    try:
+        for step in steps:
+            kind = step[0]
+            for side in sides:
+                if kind == "cd":
+                    side.cwd = join(side.top, step[1]) if step[1] else side.top
+                    if not exists(side.cwd):
+                        mkdir(side.cwd)
+                elif kind == "copy":
+                    copyfile(join(src_dir, step[2]), join(side.cwd, step[1]))
+                elif kind == "delete":
+                    if exists(join(side.cwd, step[1])):
+                        remove(join(side.cwd, step[1]))
+                elif kind == "define":
+                    side.defns[step[1]] = side.subst(step[2])
+                elif kind == "corrupt":
+                    corrupt(side.cwd)
+                elif side.program == "gitlet.Client" and kind == "stop":
+                    problems += side.stop(side.cwd)
+                elif side.program == "gitlet.Client" and kind == "start":
+                    side.start()
+            if kind == "run":
+                expected, is_regexp = step[2:] if len(step) > 2 else ([], False)
+                results = [side.run(step[1], expected, is_regexp)
+                           for side in sides]
+                if results[0] != results[1]:
+                    problems.append(
+                        "gitlet {} differs:\n{}".format(
+                            step[1], "\n".join(
+                                "--- {} (exit {})\n{}{}".format(
+                                    program, result[2], result[0], result[1])
+                                for program, result in zip(SIDES, results))))
+                    break
+        if not problems and tree(sides[0].top) != tree(sides[1].top):
+            problems.append("the working trees differ")
+    except ValueError as excp:
+        problems.append(excp.args[0])
+    finally:
+        for side in sides:
+            problems += side.close()
+    return problems
+
+if __name__ == "__main__":
+    try:
+        opts, files = getopt(sys.argv[1:], '', ['src=', 'progdir=', 'keep'])
+    except GetoptError:
+        Usage()
+
+    src_dir = abspath(join(dirname(sys.argv[0]), "src"))
+    prog_dir = abspath(join(dirname(sys.argv[0]), ".."))
+    keep = False
+    for opt, val in opts:
+        if opt == '--src':
+            src_dir = abspath(val)
+        elif opt == '--progdir':
+            prog_dir = abspath(val)
+        elif opt == '--keep':
+            keep = True
+    if 'CLASSPATH' in environ:
+        environ['CLASSPATH'] = "{}:{}".format(prog_dir, environ['CLASSPATH'])
+    else:
+        environ['CLASSPATH'] = prog_dir
+
+    failures = 0
+    runs = [("scenario", SCENARIO)]
+    for test in files:
+        if not exists(test):
+            continue
+        name = re.sub(r'\.in$', '', test.split("/")[-1])
+        try:
+            runs.append((name, read_steps(test)))
+        except (ValueError, OSError) as excp:
+            print("{}:\nFAILED ({})".format(name, excp))
+            failures += 1
+    for name, steps in runs:
+        print("{}:".format(name))
+        problems = replay(name, steps)
+        for problem in problems:
+            print(problem)
+        print("OK" if not problems else "ERROR")
+        failures += 1 if problems else 0
+
+    print()
+    print("Compared {} runs. ".format(len(runs)), end="")
+    print("All agreed." if failures == 0
+          else "{} differed.".format(failures))
+    sys.exit(0 if failures == 0 else 1)
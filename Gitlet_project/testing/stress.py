@@ -0,0 +1,169 @@
+import sys, re
+from subprocess import run, PIPE, STDOUT
+from os.path import abspath, dirname, exists, join
+from getopt import getopt, GetoptError
+from os import environ
+from shutil import rmtree
+from tempfile import mkdtemp
+from threading import Thread, Event
+
+SHORT_USAGE = """\
+Usage: python3 stress.py OPTIONS
+
+   OPTIONS may include
+       --writers=N    Number of concurrent writer processes (default 8).
+       --rounds=K     Number of commits made by each writer (default 10).
+       --readers=M    Number of concurrent reader processes (default 2).
+       --progdir=DIR  Directory or JAR files containing gitlet application
+       --keep         Keep the test repository
+"""
+
+USAGE = SHORT_USAGE + """\
+
+Creates a repository in a temporary directory, and then runs N writers
+and M readers against it at once.  Writer I makes K commits, each changing
+its own file wI.txt and adding and committing it in one batch command, and
+creates a branch bI-R after the commit of round R, as a separate command.
+The readers run log, status and find in a loop until the writers finish.
+
+Then checks that
+   + no command failed or printed a stack trace;
+   + the log of master holds the initial commit and exactly the N*K
+     commits made, each message once;
+   + every branch made exists, and points at a commit of master;
+   + find reports exactly one commit for each message;
+   + nothing is left staged, and no journal is left in .gitlet.
+
+Exits with status 0 if every check passes and 1 otherwise.
+"""
+
+JAVA_COMMAND = "java"
+
+def Usage():
+    print(SHORT_USAGE, file=sys.stderr)
+    sys.exit(1)
+
+def gitlet(repo, *args, input=None):
+    """Runs gitlet with ARGS in REPO, returning its output."""
+    result = run([JAVA_COMMAND, "gitlet.Main"] + list(args), cwd=repo,
+                 input=input, stdout=PIPE, stderr=STDOUT,
+                 universal_newlines=True)
+    if result.returncode != 0 or "Exception" in result.stdout:
+        failures.append("gitlet {} exited with {}:\n{}"
+                        .format(" ".join(args), result.returncode,
+                                result.stdout))
+    return result.stdout
+
+def writer(repo, i, rounds):
+    for r in range(rounds):
+        with open(join(repo, "w{}.txt".format(i)), "w") as out:
+            out.write("writer {} round {}\n".format(i, r))
+        out = gitlet(repo, "batch", "-",
+                     input='add w{0}.txt\ncommit "w{0} r{1}"\n'.format(i, r))
+        if out.strip():
+            failures.append("commit w{} r{}: {}".format(i, r, out))
+        gitlet(repo, "branch", "b{}-{}".format(i, r))
+
+def reader(repo, done):
+    while not done.is_set():
+        gitlet(repo, "log")
+        gitlet(repo, "status")
+        out = gitlet(repo, "find", "initial commit")
+        if len(out.split()) != 1:
+            failures.append("find initial commit: {}".format(out))
+
+if __name__ == "__main__":
+    try:
+        opts, args = \
+            getopt(sys.argv[1:], '',
+                   ['writers=', 'rounds=', 'readers=', 'progdir=', 'keep'])
+    except GetoptError:
+        Usage()
+    if args:
+        Usage()
+
+    writers = 8
+    rounds = 10
+    readers = 2
+    prog_dir = abspath(join(dirname(sys.argv[0]), ".."))
+    keep = False
+    for opt, val in opts:
+        if opt == '--writers':
+            writers = int(val)
+        elif opt == '--rounds':
+            rounds = int(val)
+        elif opt == '--readers':
+            readers = int(val)
+        elif opt == '--progdir':
+            prog_dir = abspath(val)
+        elif opt == '--keep':
+            keep = True
+    if 'CLASSPATH' in environ:
+        environ['CLASSPATH'] = "{}:{}".format(prog_dir, environ['CLASSPATH'])
+    else:
+        environ['CLASSPATH'] = prog_dir
+
+    failures = []
+    repo = mkdtemp(prefix="gitlet-stress-")
+    gitlet(repo, "init")
+
+    done = Event()
+    threads = [Thread(target=writer, args=(repo, i, rounds))
+               for i in range(writers)]
+    threads += [Thread(target=reader, args=(repo, done))
+                for _ in range(readers)]
+    for thread in threads:
+        thread.start()
+    for thread in threads[:writers]:
+        thread.join()
+    done.set()
+    for thread in threads[writers:]:
+        thread.join()
+
+    messages = re.findall(r"^Date: .*\n(.*)$", gitlet(repo, "log"), re.M)
+    expected = ["w{} r{}".format(i, r)
+                for i in range(writers) for r in range(rounds)]
+    if sorted(messages) != sorted(expected + ["initial commit"]):
+        failures.append("log of master has {} commits, expected {}"
+                        .format(len(messages), len(expected) + 1))
+    history = set(re.findall(r"^commit (\w+)$", gitlet(repo, "log"), re.M))
+
+    status = gitlet(repo, "status")
+    branches = status.split("=== Staged Files ===")[0]
+    for i in range(writers):
+        for r in range(rounds):
+            name = "b{}-{}".format(i, r)
+            if not re.search(r"^\*?{}$".format(name), branches, re.M):
+                failures.append("branch {} is missing".format(name))
+    if not re.search(r"=== Staged Files ===\n\n=== Removed Files ===\n\n",
+                     status):
+        failures.append("files left staged:\n" + status)
+
+    for message in expected:
+        ids = gitlet(repo, "find", message).split()
+        if len(ids) != 1 or ids[0] not in history:
+            failures.append("find {!r}: {}".format(message, ids))
+
+    for name in ("journal", "journal-done"):
+        if exists(join(repo, ".gitlet", name)):
+            failures.append(".gitlet/{} was left behind".format(name))
+
+    for i in range(writers):
+        name = "b{}-{}".format(i, rounds - 1)
+        gitlet(repo, "checkout", name)
+        head = re.search(r"^commit (\w+)$", gitlet(repo, "log"), re.M)
+        if head is None or head.group(1) not in history:
+            failures.append("branch {} is not on master".format(name))
+    gitlet(repo, "checkout", "master")
+
+    for failure in failures:
+        print(failure)
+    print("{} writers x {} rounds, {} readers: {}"
+          .format(writers, rounds, readers,
+                  "passed" if not failures else
+                  "{} failures".format(len(failures))))
+    if keep:
+        print("Repository kept in", repo)
+    else:
+        rmtree(repo)
+    sys.exit(0 if not failures else 1)